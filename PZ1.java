@@ -1,3 +1,8 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
 import java.util.Scanner;
 import java.util.Stack;
 
@@ -7,77 +12,137 @@ public class SimpleMathCalculator {
         CalculatorModel model = new CalculatorModel();
         CalculatorController controller = new CalculatorController(model, view);
         
-        controller.start();
+        // --bench [секунды] - замер производительности
+        if (args.length > 0 && args[0].equals("--bench")) {
+            CalculatorBenchmark.run(Arrays.copyOfRange(args, 1, args.length));
+        } else {
+            controller.start();
+        }
     }
 }
 
 // Model - содержит логику вычислений
 class CalculatorModel {
+    // Стек вычислителя переиспользуется между вызовами и растет только при необходимости
+    private double[] stack = new double[16];
+    private final DecimalEvaluator decimalEvaluator = new DecimalEvaluator();
+    private MathContext mathContext = MathContext.DECIMAL128;
+    
+    // Точность десятичного режима
+    public MathContext getMathContext() {
+        return mathContext;
+    }
+    
+    public void setMathContext(MathContext mathContext) {
+        this.mathContext = mathContext;
+    }
+    
+    // Десятичный режим: вычисление в BigDecimal с точностью getMathContext()
+    public BigDecimal calculateDecimal(String expression) throws Exception {
+        return decimalEvaluator.evaluate(convertToRPN(expression), mathContext);
+    }
+    
     public double calculate(String expression) throws Exception {
-        // Удаляем пробелы и проверяем базовые условия
-        expression = expression.replaceAll("\\s+", "");
-        if (!expression.matches("^-?\\d+.*\\d+$")) {
-            throw new Exception("Выражение должно начинаться и заканчиваться числом");
-        }
-        
-        // Преобразуем в обратную польскую нотацию
-        String rpn = convertToRPN(expression);
+        // Преобразуем в обратную польскую нотацию за один проход лексера,
+        // заодно проверяя, что выражение начинается и заканчивается числом
+        CompiledExpression rpn = convertToRPN(expression);
         
         // Вычисляем выражение
         return evaluateRPN(rpn);
     }
     
-    private String convertToRPN(String expression) {
-        StringBuilder output = new StringBuilder();
+    private CompiledExpression convertToRPN(String expression) throws Exception {
+        // Каждая лексема занимает хотя бы один символ, поэтому длины строки хватает
+        byte[] ops = new byte[expression.length()];
+        double[] constants = new double[expression.length()];
+        int[] positions = new int[expression.length()];
+        int size = 0;
         Stack<Character> stack = new Stack<>();
+        ExpressionLexer lexer = new ExpressionLexer(expression);
         
-        for (int i = 0; i < expression.length(); i++) {
-            char c = expression.charAt(i);
-            
-            if (Character.isDigit(c) || c == '.') {
-                // Собираем все число
-                while (i < expression.length() && 
-                      (Character.isDigit(expression.charAt(i)) || expression.charAt(i) == '.')) {
-                    output.append(expression.charAt(i++));
-                }
-                output.append(' ');
-                i--;
-            } else if (isOperator(c)) {
+        // Перед первым числом допускается минус
+        int token = lexer.next();
+        boolean negative = token == ExpressionLexer.OPERATOR && lexer.getOperator() == '-';
+        if (negative) {
+            token = lexer.next();
+        }
+        if (token != ExpressionLexer.NUMBER) {
+            throw new Exception("Выражение должно начинаться и заканчиваться числом");
+        }
+        
+        int last = token;
+        for (; token != ExpressionLexer.END; token = lexer.next()) {
+            last = token;
+            if (token == ExpressionLexer.NUMBER) {
+                ops[size] = CompiledExpression.CONST;
+                constants[size] = size == 0 && negative ? -lexer.getNumber() : lexer.getNumber();
+                positions[size] = lexer.getPosition();
+                size++;
+            } else {
+                char c = lexer.getOperator();
                 while (!stack.isEmpty() && getPriority(stack.peek()) >= getPriority(c)) {
-                    output.append(stack.pop()).append(' ');
+                    ops[size++] = toOpcode(stack.pop());
                 }
                 stack.push(c);
             }
         }
+        if (last != ExpressionLexer.NUMBER) {
+            throw new Exception("Выражение должно начинаться и заканчиваться числом");
+        }
         
         while (!stack.isEmpty()) {
-            output.append(stack.pop()).append(' ');
+            ops[size++] = toOpcode(stack.pop());
         }
         
-        return output.toString();
+        return new CompiledExpression(expression, ops, constants, positions, size, computeMaxDepth(ops, size));
     }
     
-    private double evaluateRPN(String rpn) throws Exception {
-        Stack<Double> stack = new Stack<>();
-        String[] tokens = rpn.split(" ");
+    // Проверяет, что программе хватает операндов, и считает нужную глубину стека
+    private int computeMaxDepth(byte[] ops, int size) throws Exception {
+        int depth = 0;
+        int maxDepth = 0;
+        for (int i = 0; i < size; i++) {
+            if (ops[i] == CompiledExpression.CONST) {
+                depth++;
+            } else {
+                if (depth < 2) throw new Exception("Некорректное выражение");
+                depth--;
+            }
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        if (depth != 1) throw new Exception("Некорректное выражение");
+        return maxDepth;
+    }
+    
+    private double evaluateRPN(CompiledExpression rpn) throws Exception {
+        if (stack.length < rpn.getMaxDepth()) {
+            stack = new double[rpn.getMaxDepth()];
+        }
+        double[] stack = this.stack;
+        byte[] ops = rpn.getOps();
+        double[] constants = rpn.getConstants();
+        int top = 0;
         
-        for (String token : tokens) {
-            if (token.isEmpty()) continue;
-            
-            if (Character.isDigit(token.charAt(0))) {
-                stack.push(Double.parseDouble(token));
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == CompiledExpression.CONST) {
+                stack[top++] = constants[i];
             } else {
-                double b = stack.pop();
-                double a = stack.pop();
-                stack.push(applyOperation(token.charAt(0), a, b));
+                double b = stack[--top];
+                stack[top - 1] = applyOperation(ops[i], stack[top - 1], b);
             }
         }
         
-        return stack.pop();
+        return stack[0];
     }
     
-    private boolean isOperator(char c) {
-        return c == '+' || c == '-' || c == '*' || c == '/' || c == '^';
+    private byte toOpcode(char op) {
+        switch (op) {
+            case '+': return CompiledExpression.ADD;
+            case '-': return CompiledExpression.SUB;
+            case '*': return CompiledExpression.MUL;
+            case '/': return CompiledExpression.DIV;
+            default: return CompiledExpression.POW;
+        }
     }
     
     private int getPriority(char op) {
@@ -89,20 +154,392 @@ class CalculatorModel {
         }
     }
     
-    private double applyOperation(char op, double a, double b) throws Exception {
+    private double applyOperation(byte op, double a, double b) throws Exception {
         switch (op) {
-            case '+': return a + b;
-            case '-': return a - b;
-            case '*': return a * b;
-            case '/': 
+            case CompiledExpression.ADD: return a + b;
+            case CompiledExpression.SUB: return a - b;
+            case CompiledExpression.MUL: return a * b;
+            case CompiledExpression.DIV: 
                 if (b == 0) throw new Exception("Деление на ноль");
                 return a / b;
-            case '^': return Math.pow(a, b);
+            case CompiledExpression.POW: return Math.pow(a, b);
             default: throw new Exception("Неизвестная операция");
         }
     }
 }
 
+// Вычисление в BigDecimal с заданным MathContext над тем же скомпилированным выражением.
+// Если выражение целочисленное (только + - * над целыми константами), оно сначала
+// считается в long с проверкой переполнения: результат точный и BigDecimal
+// создается один раз, для ответа. При переполнении выражение считается в BigDecimal
+class DecimalEvaluator {
+    private static final BigDecimal MAX_POWER = BigDecimal.valueOf(999_999_999);
+    // Без ограничения точности степень считается точно, поэтому ограничена
+    // оценка числа цифр результата: иначе 9^999999999 считалась бы бесконечно
+    private static final long MAX_UNLIMITED_DIGITS = 100_000;
+    
+    // Стеки переиспользуются между вызовами
+    private BigDecimal[] stack = new BigDecimal[16];
+    private long[] exactStack = new long[16];
+    
+    public BigDecimal evaluate(CompiledExpression program, MathContext mathContext) throws Exception {
+        BigDecimal[] constants = decimalConstants(program);
+        if (program.isIntegerArithmetic()) {
+            try {
+                return new BigDecimal(evaluateExact(program, constants), mathContext);
+            } catch (ArithmeticException e) {
+                // Переполнение long - считаем в BigDecimal
+            }
+        }
+        
+        if (stack.length < program.getMaxDepth()) {
+            stack = new BigDecimal[program.getMaxDepth()];
+        }
+        byte[] ops = program.getOps();
+        int top = 0;
+        
+        try {
+            for (int i = 0; i < ops.length; i++) {
+                byte op = ops[i];
+                
+                if (op == CompiledExpression.CONST) {
+                    stack[top++] = constants[i];
+                }
+                else {
+                    BigDecimal b = stack[--top];
+                    stack[top - 1] = applyOperation(op, stack[top - 1], b, mathContext);
+                }
+            }
+            return stack[0].round(mathContext);
+        } finally {
+            Arrays.fill(stack, 0, program.getMaxDepth(), null);
+        }
+    }
+    
+    // Бросает ArithmeticException, если промежуточное значение не помещается в long
+    private long evaluateExact(CompiledExpression program, BigDecimal[] constants) {
+        if (exactStack.length < program.getMaxDepth()) {
+            exactStack = new long[program.getMaxDepth()];
+        }
+        long[] stack = exactStack;
+        byte[] ops = program.getOps();
+        int top = 0;
+        
+        for (int i = 0; i < ops.length; i++) {
+            byte op = ops[i];
+            if (op == CompiledExpression.CONST) {
+                stack[top++] = constants[i].longValue();
+                continue;
+            }
+            long b = stack[--top];
+            long a = stack[top - 1];
+            stack[top - 1] = op == CompiledExpression.ADD ? Math.addExact(a, b)
+                : op == CompiledExpression.SUB ? Math.subtractExact(a, b) : Math.multiplyExact(a, b);
+        }
+        return stack[0];
+    }
+    
+    // Константы переводятся в BigDecimal один раз и хранятся в самом выражении.
+    // Литерал разбирается из исходной строки, а не из double: 12345678901234567890
+    // и 0.1 остаются точными
+    private BigDecimal[] decimalConstants(CompiledExpression program) {
+        BigDecimal[] constants = program.getDecimalConstants();
+        if (constants != null) {
+            return constants;
+        }
+        
+        byte[] ops = program.getOps();
+        double[] values = program.getConstants();
+        int[] positions = program.getPositions();
+        constants = new BigDecimal[ops.length];
+        boolean integerArithmetic = true;
+        for (int i = 0; i < ops.length; i++) {
+            byte op = ops[i];
+            if (op == CompiledExpression.CONST) {
+                // Минус перед первым числом уже учтен в double-константе
+                BigDecimal literal = literal(program.getSource(), positions[i]);
+                constants[i] = values[i] < 0 ? literal.negate() : literal;
+                integerArithmetic &= literal.scale() == 0 && literal.unscaledValue().bitLength() < Long.SIZE;
+            } else {
+                integerArithmetic &= op == CompiledExpression.ADD || op == CompiledExpression.SUB || op == CompiledExpression.MUL;
+            }
+        }
+        program.setDecimalConstants(constants, integerArithmetic);
+        return constants;
+    }
+    
+    // Лексер уже проверил запись числа: цифры и не больше одной точки
+    private static BigDecimal literal(String source, int start) {
+        int end = start;
+        while (end < source.length() && (source.charAt(end) >= '0' && source.charAt(end) <= '9' || source.charAt(end) == '.')) {
+            end++;
+        }
+        return new BigDecimal(source.substring(start, end));
+    }
+    
+    // ArithmeticException от BigDecimal (бесконечная дробь без ограничения точности,
+    // например 1/3, или выход порядка за пределы int) превращается в понятную ошибку
+    private BigDecimal applyOperation(byte op, BigDecimal a, BigDecimal b, MathContext mathContext) throws Exception {
+        try {
+            switch (op) {
+                case CompiledExpression.ADD: return a.add(b, mathContext);
+                case CompiledExpression.SUB: return a.subtract(b, mathContext);
+                case CompiledExpression.MUL: return a.multiply(b, mathContext);
+                case CompiledExpression.DIV: 
+                    if (b.signum() == 0) throw new Exception("Деление на ноль");
+                    return a.divide(b, mathContext);
+                case CompiledExpression.POW: return power(a, b, mathContext);
+                default: throw new Exception("Неизвестная операция");
+            }
+        } catch (ArithmeticException e) {
+            throw new Exception("Результат не представим в десятичном виде");
+        }
+    }
+    
+    // Целая степень считается точно, дробная - через double
+    private BigDecimal power(BigDecimal a, BigDecimal b, MathContext mathContext) throws Exception {
+        if (!isInteger(b) || b.abs().compareTo(MAX_POWER) > 0) {
+            return toDecimal(Math.pow(a.doubleValue(), b.doubleValue()), mathContext);
+        }
+        if (a.signum() == 0 && b.signum() < 0) throw new Exception("Деление на ноль");
+        int exponent = b.intValue();
+        if (mathContext.getPrecision() > 0) {
+            return a.pow(exponent, mathContext);
+        }
+        if ((long) a.precision() * Math.abs(exponent) > MAX_UNLIMITED_DIGITS) {
+            throw new Exception("Результат не представим в десятичном виде");
+        }
+        // pow с отрицательной степенью без ограничения точности не работает:
+        // 2^(-1) считается как 1/2^1 и дает точную дробь, если она конечна
+        return exponent >= 0 ? a.pow(exponent) : BigDecimal.ONE.divide(a.pow(-exponent), mathContext);
+    }
+    
+    private static boolean isInteger(BigDecimal value) {
+        return value.signum() == 0 || value.scale() <= 0 || value.stripTrailingZeros().scale() <= 0;
+    }
+    
+    // Результат через double верен лишь до 16-17 знаков: берется его кратчайшая
+    // десятичная запись, а не точное двоичное значение с ложными цифрами
+    private static BigDecimal toDecimal(double value, MathContext mathContext) throws Exception {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new Exception("Результат не представим в десятичном виде");
+        }
+        return BigDecimal.valueOf(value).round(mathContext);
+    }
+}
+
+// Однопроходный лексер: пропускает пробелы и разбирает числа на месте,
+// без промежуточных строк
+class ExpressionLexer {
+    static final int END = 0;
+    static final int NUMBER = 1;
+    static final int OPERATOR = 2;
+    
+    // Степени десяти, точно представимые в double
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    
+    private final String text;
+    private int pos;
+    private int start;
+    private double number;
+    private char operator;
+    
+    public ExpressionLexer(String text) {
+        this.text = text;
+    }
+    
+    public int next() throws Exception {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        start = pos;
+        if (pos >= text.length()) {
+            return END;
+        }
+        
+        char c = text.charAt(pos);
+        if (isDigit(c) || c == '.') {
+            number = readNumber();
+            return NUMBER;
+        }
+        pos++;
+        if (isOperator(c)) {
+            operator = c;
+            return OPERATOR;
+        }
+        throw new Exception("Недопустимый символ '" + c + "' в позиции " + start);
+    }
+    
+    public double getNumber() { return number; }
+    public char getOperator() { return operator; }
+    public int getPosition() { return start; }
+    
+    // Для чисел до 2^53 с не более чем 22 знаками после точки результат
+    // одного деления точен так же, как у Double.parseDouble. Более длинные
+    // записи (редкий случай) разбираются стандартным методом
+    private double readNumber() throws Exception {
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean point = false;
+        boolean exact = true;
+        
+        for (; pos < text.length(); pos++) {
+            char c = text.charAt(pos);
+            if (isDigit(c)) {
+                digits++;
+                if (point) fractionDigits++;
+                if (mantissa < MAX_EXACT_MANTISSA) {
+                    mantissa = mantissa * 10 + (c - '0');
+                } else {
+                    exact = false;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else if (c == '.') {
+                throw new Exception("Некорректное число в позиции " + start);
+            } else {
+                break;
+            }
+        }
+        
+        if (digits == 0) {
+            throw new Exception("Некорректное число в позиции " + start);
+        }
+        if (!exact || mantissa > MAX_EXACT_MANTISSA || fractionDigits >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(text.substring(start, pos));
+        }
+        return fractionDigits == 0 ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+    }
+    
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+    
+    private static boolean isOperator(char c) {
+        return c == '+' || c == '-' || c == '*' || c == '/' || c == '^';
+    }
+}
+
+// Скомпилированное выражение: коды операций и параллельный массив констант
+class CompiledExpression {
+    static final byte CONST = 0;
+    static final byte ADD = 1;
+    static final byte SUB = 2;
+    static final byte MUL = 3;
+    static final byte DIV = 4;
+    static final byte POW = 5;
+    
+    private final byte[] ops;
+    private final double[] constants;
+    // Исходная строка и позиции литералов в ней для точного разбора в десятичном режиме
+    private final String source;
+    private final int[] positions;
+    private final int maxDepth;
+    
+    // Константы в BigDecimal для десятичного режима, создаются при первом использовании
+    private volatile BigDecimal[] decimalConstants;
+    private volatile boolean integerArithmetic;
+    
+    public CompiledExpression(String source, byte[] ops, double[] constants, int[] positions, int size, int maxDepth) {
+        this.source = source;
+        this.ops = Arrays.copyOf(ops, size);
+        this.constants = Arrays.copyOf(constants, size);
+        this.positions = Arrays.copyOf(positions, size);
+        this.maxDepth = maxDepth;
+    }
+    
+    public byte[] getOps() { return ops; }
+    public double[] getConstants() { return constants; }
+    public String getSource() { return source; }
+    public int[] getPositions() { return positions; }
+    
+    // Максимальная глубина стека при вычислении
+    public int getMaxDepth() { return maxDepth; }
+    
+    BigDecimal[] getDecimalConstants() { return decimalConstants; }
+    boolean isIntegerArithmetic() { return integerArithmetic; }
+    
+    void setDecimalConstants(BigDecimal[] decimalConstants, boolean integerArithmetic) {
+        this.integerArithmetic = integerArithmetic;
+        this.decimalConstants = decimalConstants;
+    }
+}
+
+// Замер производительности калькулятора: запуск с аргументом --bench [секунды].
+// Для каждого сценария выполняется прогрев, затем замеряются пропускная
+// способность, средняя задержка и объем памяти, выделенной на один вызов
+class CalculatorBenchmark {
+    private static final int BATCH = 1000;
+    
+    private static final String[][] SCENARIOS = {
+        { "короткое", "2+3*4" },
+        { "длинное", "1+2*3-4/5+6*7-8/9+10*11-12/13+14^2" },
+        { "дробные числа", "3.14159*2.71828-1.41421/1.73205" },
+        { "степени", "2^10-3^5+4^3" }
+    };
+    
+    // Результаты копятся здесь, чтобы JIT не выбросил вычисления
+    private static volatile double sink;
+    
+    public static void run(String[] options) {
+        long seconds = options.length > 0 ? Long.parseLong(options[0]) : 2;
+        long measureNanos = seconds * 1_000_000_000L;
+        
+        System.out.printf("%-32s %14s %10s %10s%n", "Сценарий", "оп/с", "нс/оп", "байт/оп");
+        for (String[] scenario : SCENARIOS) {
+            try {
+                measure(scenario[0], new CalculatorModel(), scenario[1], measureNanos);
+            } catch (Exception e) {
+                System.out.println(scenario[0] + ": ошибка " + e.getMessage());
+            }
+        }
+    }
+    
+    private static void measure(String name, CalculatorModel model, String expression, long measureNanos) throws Exception {
+        double sum = 0;
+        long end = System.nanoTime() + measureNanos / 2;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < BATCH; i++) {
+                sum += model.calculate(expression);
+            }
+        }
+        
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long now;
+        long operations = 0;
+        end = start + measureNanos;
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                sum += model.calculate(expression);
+            }
+            operations += BATCH;
+            now = System.nanoTime();
+        } while (now < end);
+        long allocated = allocatedBytes() - allocatedBefore;
+        sink += sum;
+        
+        double elapsed = now - start;
+        System.out.printf("%-32s %14.0f %10.1f %10s%n", name,
+            operations / (elapsed / 1e9), elapsed / operations,
+            allocatedBefore < 0 ? "н/д" : String.format("%.1f", (double) allocated / operations));
+    }
+    
+    // Счетчик выделенной памяти текущего потока (доступен в HotSpot)
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
+
 // View - отвечает за ввод/вывод
 class CalculatorView {
     private Scanner scanner = new Scanner(System.in);
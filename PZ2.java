@@ -1,5 +1,50 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.Stack;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
 public class Main {
     public static void main(String[] args) {
@@ -7,225 +52,2589 @@ public class Main {
         CalculatorModel model = new CalculatorModel();
         CalculatorController controller = new CalculatorController(model, view);
         
-        controller.start();
+        // -Dcalculator.metrics.file=путь - раз в 10 секунд сохранять метрики в файл
+        String metricsFile = System.getProperty("calculator.metrics.file");
+        if (CalculatorMetrics.ENABLED && metricsFile != null) {
+            model.getMetrics().startDump(Paths.get(metricsFile), 10, TimeUnit.SECONDS);
+        }
+        
+        // --batch [--parallel] [файл] - пакетная обработка без диалога,
+        // --bench [секунды] - замер производительности
+        if (args.length > 0 && args[0].equals("--batch")) {
+            controller.startBatch(Arrays.copyOfRange(args, 1, args.length));
+        } else if (args.length > 0 && args[0].equals("--bench")) {
+            CalculatorBenchmark.run(Arrays.copyOfRange(args, 1, args.length));
+        } else {
+            controller.start();
+        }
+    }
+}
+
+// Model - содержит логику вычислений
+class CalculatorModel {
+    private static final int DEFAULT_CACHE_SIZE = 1024;
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 16;
+    private static final int MIN_CHUNK_SIZE = 4096;
+    private static final int DEFAULT_COMPILE_THRESHOLD = 10_000;
+    private static final int DEFAULT_MAX_OPERATORS = 1_000_000;
+    private static final int DEFAULT_BLOCK_THRESHOLD = BlockEvaluator.BLOCK;
+    // Служебная отметка удаленной инструкции при оптимизации
+    private static final byte REMOVED = -1;
+    
+    // Факториалы 0..170; 171! уже не помещается в double
+    private static final double[] FACTORIALS = new double[171];
+    private static final int FACTORIAL_CHECKPOINT = 64;
+    private static final List<BigInteger> EXACT_FACTORIALS = new ArrayList<>();
+    private static final double LANCZOS_G = 7;
+    private static final double[] LANCZOS = {
+        0.99999999999980993, 676.5203681218851, -1259.1392167224028,
+        771.32342877765313, -176.61502916214059, 12.507343278686905,
+        -0.13857109526572012, 9.9843695780195716e-6, 1.5056327351493116e-7
+    };
+    
+    static {
+        FACTORIALS[0] = 1;
+        for (int i = 1; i < FACTORIALS.length; i++) {
+            FACTORIALS[i] = FACTORIALS[i - 1] * i;
+        }
+        EXACT_FACTORIALS.add(BigInteger.ONE);
+    }
+    
+    private final ExpressionCache cache;
+    private final CalculatorMetrics metrics;
+    private final ThreadLocal<EvaluationContext> contexts = ThreadLocal.withInitial(EvaluationContext::new);
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+    private volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    private volatile int compileThreshold = DEFAULT_COMPILE_THRESHOLD;
+    private volatile int maxOperators = DEFAULT_MAX_OPERATORS;
+    private volatile int blockThreshold = BlockEvaluator.VECTORIZED ? DEFAULT_BLOCK_THRESHOLD : -1;
+    private volatile MathContext mathContext = MathContext.DECIMAL128;
+    private final ThreadLocal<DecimalEvaluator> decimalEvaluators = ThreadLocal.withInitial(DecimalEvaluator::new);
+    private final ThreadLocal<BlockEvaluator> blockEvaluators = ThreadLocal.withInitial(BlockEvaluator::new);
+    
+    public CalculatorModel() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+    
+    public CalculatorModel(int cacheSize) {
+        this.cache = new ExpressionCache(cacheSize);
+        this.metrics = new CalculatorMetrics(cache);
+    }
+    
+    public ExpressionCache getCache() {
+        return cache;
+    }
+    
+    public CalculatorMetrics getMetrics() {
+        return metrics;
+    }
+    
+    // Пакеты меньше порога вычисляются в вызывающем потоке
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+    
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+    
+    // После стольких вычислений выражение переводится в сгенерированный байткод.
+    // Отрицательное значение отключает генерацию
+    public int getCompileThreshold() {
+        return compileThreshold;
+    }
+    
+    public void setCompileThreshold(int compileThreshold) {
+        this.compileThreshold = compileThreshold;
+    }
+    
+    // Пакеты от стольких строк вычисляются по блокам (BlockEvaluator), меньшие - построчно.
+    // Отрицательное значение отключает блочное вычисление; по умолчанию оно
+    // выключено, если JIT не векторизует циклы
+    public int getBlockThreshold() {
+        return blockThreshold;
+    }
+    
+    public void setBlockThreshold(int blockThreshold) {
+        this.blockThreshold = blockThreshold;
+    }
+    
+    // Наибольшее число операций в одном выражении. Разбор и вычисление линейны
+    // по длине выражения, ограничение защищает только от чрезмерно длинного ввода
+    public int getMaxOperators() {
+        return maxOperators;
+    }
+    
+    public void setMaxOperators(int maxOperators) {
+        this.maxOperators = maxOperators;
+        // Результаты разбора в кэше получены с прежним ограничением
+        cache.clear();
+    }
+    
+    public double calculate(String expression) throws CalculationException {
+        try {
+            CompiledExpression compiled = compile(expression);
+            EvaluationContext context = contexts.get();
+            double result = evaluateOnce(compiled, context, null);
+            if (context.status != CalculationStatus.OK) {
+                throw context.toException();
+            }
+            return result;
+        } catch (CalculationException e) {
+            if (CalculatorMetrics.ENABLED) metrics.recordError(e.getStatus());
+            throw e;
+        }
+    }
+    
+    // Вычисление без исключений: ошибка возвращается кодом и позицией в строке.
+    // Неудачный разбор тоже кэшируется, поэтому повторяющаяся ошибочная строка
+    // не разбирается заново
+    public CalculationResult calculateResult(String expression) {
+        return calculateResult(lookup(expression));
+    }
+    
+    // То же без кэша: пакет разбирает каждую строку сам, и параллельные потоки
+    // не ждут друг друга на общем мониторе кэша
+    public CalculationResult calculateResultUncached(String expression) {
+        CompiledExpression compiled;
+        try {
+            compiled = parse(expression);
+        } catch (CalculationException e) {
+            compiled = new CompiledExpression(e);
+        }
+        return calculateResult(compiled);
+    }
+    
+    private CalculationResult calculateResult(CompiledExpression compiled) {
+        CalculationResult failure = compiled.getFailure();
+        if (failure != null) {
+            if (CalculatorMetrics.ENABLED) metrics.recordError(failure.getStatus());
+            return failure;
+        }
+        
+        EvaluationContext context = contexts.get();
+        double result = evaluateOnce(compiled, context, null);
+        if (context.status != CalculationStatus.OK) {
+            if (CalculatorMetrics.ENABLED) metrics.recordError(context.status);
+            return CalculationResult.failure(context.status, context.offset, context.status.getMessage());
+        }
+        return CalculationResult.success(result);
+    }
+    
+    // Точность десятичного режима
+    public MathContext getMathContext() {
+        return mathContext;
+    }
+    
+    public void setMathContext(MathContext mathContext) {
+        this.mathContext = mathContext;
+    }
+    
+    // Десятичный режим: вычисление в BigDecimal с точностью getMathContext()
+    public BigDecimal calculateDecimal(String expression) throws CalculationException {
+        return decimalEvaluators.get().evaluate(compile(expression), mathContext);
+    }
+    
+    public BigDecimal evaluateDecimal(CompiledExpression expression, BigDecimal... values) throws CalculationException {
+        checkVariableCount(expression, values.length);
+        return decimalEvaluators.get().evaluate(expression, mathContext, values);
+    }
+    
+    // Вычисляет выражение с переменными для одного набора значений
+    public double evaluate(CompiledExpression expression, double... values) throws CalculationException {
+        checkVariableCount(expression, values.length);
+        EvaluationContext context = contexts.get();
+        double result = evaluateOnce(expression, context, context.rowOf(values));
+        if (context.status != CalculationStatus.OK) {
+            if (CalculatorMetrics.ENABLED) metrics.recordError(context.status);
+            throw context.toException();
+        }
+        return result;
+    }
+    
+    private double evaluateOnce(CompiledExpression expression, EvaluationContext context, double[][] columns) {
+        long start = CalculatorMetrics.ENABLED ? System.nanoTime() : 0;
+        double result = evaluateRow(expression, formulaFor(expression, 1), context, columns, 0);
+        if (CalculatorMetrics.ENABLED) metrics.record(CalculatorMetrics.EVALUATE, System.nanoTime() - start);
+        return result;
+    }
+    
+    // Сгенерированный код сообщает об ошибке только неконечным результатом, поэтому
+    // такой результат перепроверяется интерпретатором: он и дает код ошибки с позицией
+    private double evaluateRow(CompiledExpression expression, GeneratedFormula formula,
+                               EvaluationContext context, double[][] columns, int row) {
+        if (formula != null) {
+            double result = formula.evaluate(columns, row);
+            if (Double.isFinite(result)) {
+                context.status = CalculationStatus.OK;
+                return result;
+            }
+        }
+        return evaluateRPN(expression, context, columns, row);
+    }
+    
+    // Вычисляет выражение построчно над столбцами значений переменных.
+    // columns[i] - значения i-й переменной, результат строки записывается в out
+    public void evaluate(CompiledExpression expression, double[][] columns, double[] out) throws CalculationException {
+        checkColumns(expression, columns, out);
+        long start = CalculatorMetrics.ENABLED ? System.nanoTime() : 0;
+        try {
+            evaluateRange(expression, columns, out, 0, out.length);
+        } catch (CalculationException e) {
+            if (CalculatorMetrics.ENABLED) metrics.recordError(e.getStatus());
+            throw e;
+        }
+        if (CalculatorMetrics.ENABLED) metrics.record(CalculatorMetrics.BULK, System.nanoTime() - start);
+    }
+    
+    // То же, что evaluate, но большие пакеты делятся на части и считаются в ForkJoinPool
+    public void evaluateParallel(CompiledExpression expression, double[][] columns, double[] out) throws CalculationException {
+        checkColumns(expression, columns, out);
+        long start = CalculatorMetrics.ENABLED ? System.nanoTime() : 0;
+        try {
+            evaluateChunks(expression, columns, out);
+        } catch (CalculationException e) {
+            if (CalculatorMetrics.ENABLED) metrics.recordError(e.getStatus());
+            throw e;
+        }
+        if (CalculatorMetrics.ENABLED) metrics.record(CalculatorMetrics.BULK, System.nanoTime() - start);
+    }
+    
+    private void evaluateChunks(CompiledExpression expression, double[][] columns, double[] out) throws CalculationException {
+        if (out.length < parallelThreshold || pool.getParallelism() < 2) {
+            evaluateRange(expression, columns, out, 0, out.length);
+            return;
+        }
+        
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, out.length / (pool.getParallelism() * 4));
+        try {
+            pool.invoke(new BulkEvaluationTask(expression, columns, out, 0, out.length, chunkSize));
+        } catch (CompletionException e) {
+            // Пробрасываем исходную ошибку вычисления (например, деление на ноль)
+            Throwable cause = e;
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof CalculationException) throw (CalculationException) cause;
+            throw e;
+        }
+    }
+    
+    private void evaluateRange(CompiledExpression expression, double[][] columns, double[] out,
+                               int from, int to) throws CalculationException {
+        // Блоки обгоняют байткод, начиная с пакета в один блок (см. --bench), поэтому
+        // способ выбирается по размеру пакета. Байткод генерируется для коротких пакетов,
+        // когда число вызовов (а не строк) достигает порога
+        int threshold = blockThreshold;
+        if (threshold < 0 || to - from < threshold) {
+            evaluateRows(expression, formulaFor(expression, 1), columns, out, from, to);
+            return;
+        }
+        
+        BlockEvaluator blocks = blockEvaluators.get();
+        for (int start = from; start < to; start += BlockEvaluator.BLOCK) {
+            int end = Math.min(to, start + BlockEvaluator.BLOCK);
+            if (!blocks.evaluate(expression, columns, out, start, end)) {
+                // В блоке есть ошибка или неконечное значение: уточняем построчно
+                evaluateRows(expression, null, columns, out, start, end);
+            }
+        }
+    }
+    
+    private void evaluateRows(CompiledExpression expression, GeneratedFormula formula, double[][] columns,
+                              double[] out, int from, int to) throws CalculationException {
+        EvaluationContext context = contexts.get();
+        for (int row = from; row < to; row++) {
+            out[row] = evaluateRow(expression, formula, context, columns, row);
+            if (context.status != CalculationStatus.OK) {
+                throw context.toException();
+            }
+        }
+    }
+    
+    // Возвращает сгенерированный код выражения, создавая его при достижении порога
+    private GeneratedFormula formulaFor(CompiledExpression expression, int invocations) {
+        GeneratedFormula formula = expression.getFormula();
+        if (formula != null || expression.isGenerated()) {
+            return formula;
+        }
+        int threshold = compileThreshold;
+        if (threshold < 0 || expression.countInvocations(invocations) < threshold) {
+            return null;
+        }
+        synchronized (expression) {
+            if (!expression.isGenerated()) {
+                expression.setFormula(FormulaCompiler.compile(expression));
+            }
+        }
+        return expression.getFormula();
+    }
+    
+    private void checkColumns(CompiledExpression expression, double[][] columns, double[] out) throws CalculationException {
+        checkVariableCount(expression, columns.length);
+        for (double[] column : columns) {
+            if (column.length < out.length) {
+                throw new CalculationException(CalculationStatus.INVALID_ARGUMENTS, -1,
+                                               "Столбец значений короче массива результатов");
+            }
+        }
+    }
+    
+    private void checkVariableCount(CompiledExpression expression, int count) throws CalculationException {
+        if (expression.getVariables().length != count) {
+            throw new CalculationException(CalculationStatus.INVALID_ARGUMENTS, -1,
+                "Ожидалось переменных: " + expression.getVariables().length + ", передано: " + count);
+        }
+    }
+    
+    // Разбирает выражение один раз; повторные вызовы с тем же текстом берут результат из кэша
+    public CompiledExpression compile(String expression) throws CalculationException {
+        CompiledExpression compiled = lookup(expression);
+        if (compiled.getError() != null) {
+            throw compiled.getError();
+        }
+        return compiled;
+    }
+    
+    // Ошибка разбора сохраняется в кэше вместо программы. Исключение без стека
+    // неизменяемо, поэтому один экземпляр можно бросать повторно
+    private CompiledExpression lookup(String expression) {
+        CompiledExpression compiled = cache.get(expression);
+        if (compiled == null) {
+            try {
+                compiled = parse(expression);
+            } catch (CalculationException e) {
+                compiled = new CompiledExpression(e);
+            }
+            cache.put(expression, compiled);
+        }
+        return compiled;
+    }
+    
+    // Компилирует выражение с именованными переменными, например "x*2+log(y)".
+    // Порядок имен задает порядок значений при вычислении
+    public CompiledExpression compile(String expression, String... variables) throws CalculationException {
+        if (variables.length == 0) {
+            return compile(expression);
+        }
+        return parse(expression, variables);
+    }
+    
+    private CompiledExpression parse(String expression, String... variables) throws CalculationException {
+        // Преобразование в обратную польскую нотацию за один проход лексера,
+        // затем свертка констант и упрощение перед вычислением
+        long start = CalculatorMetrics.ENABLED ? System.nanoTime() : 0;
+        CompiledExpression rpn = convertToRPN(expression, variables);
+        long converted = CalculatorMetrics.ENABLED ? System.nanoTime() : 0;
+        CompiledExpression folded = foldConstants(rpn);
+        if (CalculatorMetrics.ENABLED) {
+            metrics.record(CalculatorMetrics.CONVERT, converted - start);
+            metrics.record(CalculatorMetrics.FOLD, System.nanoTime() - converted);
+        }
+        return folded;
+    }
+    
+    private CompiledExpression convertToRPN(String expression, String[] variables) throws CalculationException {
+        RpnBuilder rpn = new RpnBuilder(expression.length());
+        int depth = 0;
+        int operators = 0;
+        int limit = maxOperators;
+        ExpressionLexer lexer = new ExpressionLexer(expression);
+        
+        for (int token = lexer.next(); token != ExpressionLexer.END; token = lexer.next()) {
+            int position = lexer.getPosition();
+            if (token == ExpressionLexer.NUMBER) {
+                rpn.emit(CompiledExpression.CONST, lexer.getNumber(), position);
+            }
+            else if (token == ExpressionLexer.NAME) {
+                // Имя переменной, функции или константы
+                int variable = findVariable(lexer, variables);
+                
+                if (variable >= 0) {
+                    // Для переменной в массиве констант хранится ее номер
+                    rpn.emit(CompiledExpression.VAR, variable, position);
+                } else if ((lexer.nameEquals("log") || lexer.nameEquals("log2")) && lexer.peek() == '(') {
+                    rpn.push('l', position);
+                } else if (lexer.nameEquals("exp") && lexer.peek() == '(') {
+                    // exp(x) вычисляется как e^(x)
+                    rpn.emit(CompiledExpression.CONST, Math.E, position);
+                    rpn.pushOperator('^', position);
+                } else if (lexer.nameEquals("e")) {
+                    rpn.emit(CompiledExpression.CONST, Math.E, position);
+                } else {
+                    throw new CalculationException(CalculationStatus.UNKNOWN_IDENTIFIER, position,
+                                                   "Неизвестный идентификатор: " + lexer.getName());
+                }
+            }
+            else if (token == ExpressionLexer.OPERATOR) {
+                if (++operators > limit) {
+                    throw new CalculationException(CalculationStatus.TOO_MANY_OPERATORS, position,
+                                                   "Превышено максимальное количество операций (" + limit + ")");
+                }
+                rpn.pushOperator(lexer.getOperator(), position);
+            }
+            else if (token == ExpressionLexer.OPEN) {
+                depth++;
+                rpn.push('(', position);
+            }
+            else if (token == ExpressionLexer.CLOSE) {
+                if (--depth < 0) {
+                    throw new CalculationException(CalculationStatus.UNBALANCED_PARENTHESES, position);
+                }
+                while (rpn.peek() != '(') {
+                    rpn.pop();
+                }
+                rpn.discard();
+                if (rpn.peek() == 'l') {
+                    rpn.pop();
+                }
+            }
+        }
+        
+        if (depth != 0) {
+            // Позиция самой внутренней незакрытой скобки
+            throw new CalculationException(CalculationStatus.UNBALANCED_PARENTHESES, rpn.findOpen());
+        }
+        while (rpn.peek() != 0) {
+            rpn.pop();
+        }
+        
+        return new CompiledExpression(expression, rpn.ops, rpn.constants, rpn.positions, rpn.size,
+                                      computeMaxDepth(rpn.ops, rpn.positions, rpn.size, expression.length()), variables);
+    }
+    
+    // Выходная программа и стек операторов алгоритма сортировочной станции
+    // на примитивных массивах; для каждой инструкции запоминается позиция
+    // лексемы в исходной строке. Каждая лексема дает не больше инструкций
+    // и элементов стека, чем в ней символов, поэтому длины строки хватает
+    private static class RpnBuilder {
+        final byte[] ops;
+        final double[] constants;
+        final int[] positions;
+        int size;
+        private final char[] stack;
+        private final int[] stackPositions;
+        private int top;
+        
+        RpnBuilder(int capacity) {
+            ops = new byte[capacity];
+            constants = new double[capacity];
+            positions = new int[capacity];
+            stack = new char[capacity];
+            stackPositions = new int[capacity];
+        }
+        
+        void emit(byte op, double constant, int position) {
+            ops[size] = op;
+            constants[size] = constant;
+            positions[size++] = position;
+        }
+        
+        // Выталкивает операторы с не меньшим приоритетом и кладет op на стек
+        void pushOperator(char op, int position) throws CalculationException {
+            while (top > 0 && getPriority(stack[top - 1]) >= getPriority(op)) {
+                pop();
+            }
+            push(op, position);
+        }
+        
+        void push(char op, int position) {
+            stack[top] = op;
+            stackPositions[top++] = position;
+        }
+        
+        // Верхний оператор стека или 0, если стек пуст
+        char peek() {
+            return top > 0 ? stack[top - 1] : 0;
+        }
+        
+        // Переносит верхний оператор в выходную программу
+        void pop() throws CalculationException {
+            top--;
+            emit(toOpcode(stack[top]), 0, stackPositions[top]);
+        }
+        
+        void discard() {
+            top--;
+        }
+        
+        int findOpen() {
+            for (int i = top - 1; i >= 0; i--) {
+                if (stack[i] == '(') return stackPositions[i];
+            }
+            return -1;
+        }
+    }
+    
+    private int findVariable(ExpressionLexer lexer, String[] variables) {
+        for (int i = 0; i < variables.length; i++) {
+            if (lexer.nameEquals(variables[i])) return i;
+        }
+        return -1;
+    }
+    
+    // Проверяет, что программе хватает операндов, и считает нужную глубину стека.
+    // end - позиция ошибки, если после разбора на стеке осталось не одно значение
+    private int computeMaxDepth(byte[] ops, int[] positions, int size, int end) throws CalculationException {
+        int depth = 0;
+        int maxDepth = 0;
+        for (int i = 0; i < size; i++) {
+            if (ops[i] == CompiledExpression.CONST || ops[i] == CompiledExpression.VAR) {
+                depth++;
+            } else if (!isUnary(ops[i])) {
+                if (depth < 2) throw new CalculationException(CalculationStatus.INVALID_EXPRESSION, positions[i]);
+                depth--;
+            } else if (depth < 1) {
+                throw new CalculationException(CalculationStatus.INVALID_EXPRESSION, positions[i]);
+            }
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        if (depth != 1) throw new CalculationException(CalculationStatus.INVALID_EXPRESSION, end);
+        return maxDepth;
+    }
+    
+    // Сворачивает константные подвыражения (2^10, log2(8), 5!) и убирает
+    // тождественные операции x*1, 1*x, x/1, x^1, x+0, 0+x, x-0.
+    // Для каждого операнда на стеке помним, с какой инструкции он начинается
+    // и является ли он одной константой. Операции, которые на константах
+    // дают ошибку (например, 1/0), не сворачиваются, чтобы ошибка возникла
+    // при вычислении.
+    private CompiledExpression foldConstants(CompiledExpression rpn) throws CalculationException {
+        byte[] source = rpn.getOps();
+        double[] sourceConstants = rpn.getConstants();
+        int[] sourcePositions = rpn.getPositions();
+        byte[] ops = new byte[source.length];
+        double[] constants = new double[source.length];
+        int[] positions = new int[source.length];
+        int size = 0;
+        int[] operandStart = new int[rpn.getMaxDepth()];
+        boolean[] operandConstant = new boolean[rpn.getMaxDepth()];
+        int top = 0;
+        
+        for (int i = 0; i < source.length; i++) {
+            byte op = source[i];
+            
+            if (op == CompiledExpression.CONST || op == CompiledExpression.VAR) {
+                operandStart[top] = size;
+                operandConstant[top++] = op == CompiledExpression.CONST;
+                ops[size] = op;
+                positions[size] = sourcePositions[i];
+                constants[size++] = sourceConstants[i];
+            }
+            else if (isUnary(op)) {
+                int a = operandStart[top - 1];
+                if (operandConstant[top - 1] && checkArguments(op, constants[a], 0) == CalculationStatus.OK) {
+                    constants[a] = applyFunction(op, constants[a]);
+                    continue;
+                }
+                ops[size] = op;
+                positions[size++] = sourcePositions[i];
+                operandConstant[top - 1] = false;
+            }
+            else {
+                top--;
+                int a = operandStart[top - 1];
+                int b = operandStart[top];
+                boolean leftConstant = operandConstant[top - 1];
+                boolean rightConstant = operandConstant[top];
+                operandConstant[top - 1] = false;
+                
+                if (leftConstant && rightConstant) {
+                    if (checkArguments(op, constants[a], constants[b]) == CalculationStatus.OK) {
+                        constants[a] = applyOperation(op, constants[a], constants[b]);
+                        size = a + 1;
+                        operandConstant[top - 1] = true;
+                        continue;
+                    }
+                    // Иначе оставляем операцию до вычисления
+                } else if (rightConstant && isRightIdentity(op, constants[b])) {
+                    size = b;
+                    continue;
+                } else if (leftConstant && isLeftIdentity(op, constants[a])) {
+                    ops[a] = REMOVED;
+                    continue;
+                }
+                ops[size] = op;
+                positions[size++] = sourcePositions[i];
+            }
+        }
+        
+        // Убираем инструкции, помеченные как удаленные
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            if (ops[i] != REMOVED) {
+                ops[length] = ops[i];
+                positions[length] = positions[i];
+                constants[length++] = constants[i];
+            }
+        }
+        return new CompiledExpression(rpn.getSource(), ops, constants, positions, length,
+                                      computeMaxDepth(ops, positions, length, -1), rpn.getVariables(), rpn);
+    }
+    
+    private boolean isRightIdentity(byte op, double value) {
+        switch (op) {
+            case CompiledExpression.ADD: case CompiledExpression.SUB: return value == 0;
+            case CompiledExpression.MUL: case CompiledExpression.DIV: case CompiledExpression.POW: return value == 1;
+            default: return false;
+        }
+    }
+    
+    private boolean isLeftIdentity(byte op, double value) {
+        switch (op) {
+            case CompiledExpression.ADD: return value == 0;
+            case CompiledExpression.MUL: return value == 1;
+            default: return false;
+        }
+    }
+    
+    // Ошибка не бросается, а записывается в context вместе с позицией операции;
+    // результат в этом случае - NaN
+    private double evaluateRPN(CompiledExpression rpn, EvaluationContext context, double[][] columns, int row) {
+        byte[] ops = rpn.getOps();
+        double[] constants = rpn.getConstants();
+        double[] stack = context.stackFor(rpn.getMaxDepth());
+        int top = 0;
+        
+        for (int i = 0; i < ops.length; i++) {
+            byte op = ops[i];
+            
+            if (op == CompiledExpression.CONST) {
+                stack[top++] = constants[i];
+            }
+            else if (op == CompiledExpression.VAR) {
+                stack[top++] = columns[(int) constants[i]][row];
+            }
+            else if (isUnary(op)) {
+                CalculationStatus status = checkArguments(op, stack[top - 1], 0);
+                if (status != CalculationStatus.OK) {
+                    return context.fail(status, rpn.getPositions()[i]);
+                }
+                stack[top - 1] = applyFunction(op, stack[top - 1]);
+            }
+            else {
+                double b = stack[--top];
+                CalculationStatus status = checkArguments(op, stack[top - 1], b);
+                if (status != CalculationStatus.OK) {
+                    return context.fail(status, rpn.getPositions()[i]);
+                }
+                stack[top - 1] = applyOperation(op, stack[top - 1], b);
+            }
+        }
+        
+        context.status = CalculationStatus.OK;
+        return stack[0];
+    }
+    
+    // Состояние вычислителя в потоке: стек, который растет только при
+    // необходимости, и код ошибки последнего вычисления
+    private static class EvaluationContext {
+        private double[] stack = new double[16];
+        private double[][] row = new double[0][];
+        private CalculationStatus status = CalculationStatus.OK;
+        private int offset = -1;
+        
+        double[] stackFor(int depth) {
+            if (stack.length < depth) {
+                stack = new double[depth];
+            }
+            return stack;
+        }
+        
+        // Столбцы из одной строки для вычисления с одним набором значений;
+        // лишние столбцы от прошлых вызовов не мешают, так как переменные берутся по номеру
+        double[][] rowOf(double[] values) {
+            if (row.length < values.length) {
+                row = new double[values.length][1];
+            }
+            for (int i = 0; i < values.length; i++) {
+                row[i][0] = values[i];
+            }
+            return row;
+        }
+        
+        double fail(CalculationStatus status, int offset) {
+            this.status = status;
+            this.offset = offset;
+            return Double.NaN;
+        }
+        
+        CalculationException toException() {
+            return new CalculationException(status, offset);
+        }
+    }
+    
+    // Часть пакетного вычисления: делится пополам, пока не станет меньше chunkSize
+    private class BulkEvaluationTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final CompiledExpression expression;
+        private final double[][] columns;
+        private final double[] out;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+        
+        BulkEvaluationTask(CompiledExpression expression, double[][] columns, double[] out,
+                           int from, int to, int chunkSize) {
+            this.expression = expression;
+            this.columns = columns;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                try {
+                    evaluateRange(expression, columns, out, from, to);
+                } catch (CalculationException e) {
+                    throw new CompletionException(e);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new BulkEvaluationTask(expression, columns, out, from, middle, chunkSize),
+                      new BulkEvaluationTask(expression, columns, out, middle, to, chunkSize));
+        }
+    }
+    
+    private static boolean isUnary(byte op) {
+        return op == CompiledExpression.FACTORIAL || op == CompiledExpression.LOG2;
+    }
+    
+    private static byte toOpcode(char op) throws CalculationException {
+        switch (op) {
+            case '+': return CompiledExpression.ADD;
+            case '-': return CompiledExpression.SUB;
+            case '*': return CompiledExpression.MUL;
+            case '/': return CompiledExpression.DIV;
+            case '^': return CompiledExpression.POW;
+            case '!': return CompiledExpression.FACTORIAL;
+            case 'l': return CompiledExpression.LOG2;
+            default: throw new CalculationException(CalculationStatus.UNKNOWN_OPERATION, -1);
+        }
+    }
+    
+    private static int getPriority(char op) {
+        switch (op) {
+            case '^': return 4;
+            case '!': return 4;
+            case 'e': case 'l': return 4; // Функции
+            case '*': case '/': return 3;
+            case '+': case '-': return 2;
+            case '(': return 1;
+            default: return 0;
+        }
+    }
+    
+    // Статические операции вызываются и из сгенерированного байткода, поэтому
+    // не бросают исключений: для отрицательного аргумента факториал равен NaN,
+    // а интерпретатор заранее проверяет аргументы через checkArguments.
+    // Целые аргументы до 170 берутся из таблицы, остальные считаются через гамма-функцию: n! = Г(n+1)
+    static double factorial(double n) {
+        if (n < 0) return Double.NaN;
+        if (n < FACTORIALS.length && n % 1 == 0) {
+            return FACTORIALS[(int) n];
+        }
+        return gamma(n + 1);
+    }
+    
+    // Приближение Ланцоша (g = 7), относительная погрешность порядка 1e-13
+    static double logGamma(double x) {
+        x -= 1;
+        double sum = LANCZOS[0];
+        for (int i = 1; i < LANCZOS.length; i++) {
+            sum += LANCZOS[i] / (x + i);
+        }
+        double t = x + LANCZOS_G + 0.5;
+        return 0.5 * Math.log(2 * Math.PI) + (x + 0.5) * Math.log(t) - t + Math.log(sum);
+    }
+    
+    static double gamma(double x) {
+        return Math.exp(logGamma(x));
+    }
+    
+    // Точный факториал. Промежуточные значения сохраняются через каждые
+    // FACTORIAL_CHECKPOINT шагов, так что повторные вызовы досчитывают
+    // только от ближайшей сохраненной точки
+    static BigInteger factorialExact(int n) {
+        if (n < 0) throw new IllegalArgumentException("Факториал отрицательного числа");
+        int checkpoint = n / FACTORIAL_CHECKPOINT;
+        BigInteger result;
+        synchronized (EXACT_FACTORIALS) {
+            while (EXACT_FACTORIALS.size() <= checkpoint) {
+                int from = (EXACT_FACTORIALS.size() - 1) * FACTORIAL_CHECKPOINT;
+                EXACT_FACTORIALS.add(multiplyRange(EXACT_FACTORIALS.get(EXACT_FACTORIALS.size() - 1),
+                                                   from + 1, from + FACTORIAL_CHECKPOINT));
+            }
+            result = EXACT_FACTORIALS.get(checkpoint);
+        }
+        return multiplyRange(result, checkpoint * FACTORIAL_CHECKPOINT + 1, n);
+    }
+    
+    private static BigInteger multiplyRange(BigInteger value, int from, int to) {
+        for (int i = from; i <= to; i++) {
+            value = value.multiply(BigInteger.valueOf(i));
+        }
+        return value;
+    }
+    
+    static double log2(double a) {
+        return Math.log(a) / Math.log(2);
+    }
+    
+    // Код ошибки для аргументов операции; у унарных операций b не используется
+    static CalculationStatus checkArguments(byte op, double a, double b) {
+        if (op == CompiledExpression.DIV && b == 0) return CalculationStatus.DIVISION_BY_ZERO;
+        if (op == CompiledExpression.FACTORIAL && a < 0) return CalculationStatus.NEGATIVE_FACTORIAL;
+        return CalculationStatus.OK;
+    }
+    
+    private static double applyFunction(byte op, double a) {
+        return op == CompiledExpression.FACTORIAL ? factorial(a) : log2(a);
+    }
+    
+    private static double applyOperation(byte op, double a, double b) {
+        switch (op) {
+            case CompiledExpression.ADD: return a + b;
+            case CompiledExpression.SUB: return a - b;
+            case CompiledExpression.MUL: return a * b;
+            case CompiledExpression.DIV: return a / b;
+            case CompiledExpression.POW: return Math.pow(a, b);
+            default: return Double.NaN;
+        }
+    }
+}
+
+// Вычисление в BigDecimal с заданным MathContext над тем же скомпилированным выражением.
+// Если выражение целочисленное (только + - * над целыми константами), оно сначала
+// считается в long с проверкой переполнения: результат точный и BigDecimal
+// создается один раз, для ответа. При переполнении выражение считается в BigDecimal
+class DecimalEvaluator {
+    private static final BigDecimal E = new BigDecimal(
+        "2.7182818284590452353602874713526624977572470936999595749669676277240766303535475945713821785251664274");
+    private static final BigDecimal MAX_POWER = BigDecimal.valueOf(999_999_999);
+    // Без ограничения точности степень считается точно, поэтому ограничена
+    // оценка числа цифр результата: иначе 9^999999999 считалась бы бесконечно
+    private static final long MAX_UNLIMITED_DIGITS = 100_000;
+    private static final BigDecimal MAX_EXACT_FACTORIAL = BigDecimal.valueOf(10_000);
+    
+    // Стеки переиспользуются между вызовами
+    private BigDecimal[] stack = new BigDecimal[16];
+    private long[] exactStack = new long[16];
+    
+    public BigDecimal evaluate(CompiledExpression expression, MathContext mathContext, BigDecimal... values) throws CalculationException {
+        // Константы свернуты в double, поэтому берется программа до свертки
+        CompiledExpression program = expression.getUnfolded();
+        BigDecimal[] constants = decimalConstants(program);
+        if (program.isIntegerArithmetic()) {
+            try {
+                return new BigDecimal(evaluateExact(program, constants), mathContext);
+            } catch (ArithmeticException e) {
+                // Переполнение long - считаем в BigDecimal
+            }
+        }
+        
+        if (stack.length < program.getMaxDepth()) {
+            stack = new BigDecimal[program.getMaxDepth()];
+        }
+        byte[] ops = program.getOps();
+        int top = 0;
+        
+        try {
+            for (int i = 0; i < ops.length; i++) {
+                byte op = ops[i];
+                int position = program.getPositions()[i];
+                
+                if (op == CompiledExpression.CONST) {
+                    stack[top++] = constants[i];
+                }
+                else if (op == CompiledExpression.VAR) {
+                    stack[top++] = values[(int) program.getConstants()[i]];
+                }
+                else if (op == CompiledExpression.FACTORIAL || op == CompiledExpression.LOG2) {
+                    stack[top - 1] = applyFunction(op, stack[top - 1], mathContext, position);
+                }
+                else {
+                    BigDecimal b = stack[--top];
+                    stack[top - 1] = applyOperation(op, stack[top - 1], b, mathContext, position);
+                }
+            }
+            return stack[0].round(mathContext);
+        } finally {
+            Arrays.fill(stack, 0, program.getMaxDepth(), null);
+        }
+    }
+    
+    // Бросает ArithmeticException, если промежуточное значение не помещается в long
+    private long evaluateExact(CompiledExpression program, BigDecimal[] constants) {
+        if (exactStack.length < program.getMaxDepth()) {
+            exactStack = new long[program.getMaxDepth()];
+        }
+        long[] stack = exactStack;
+        byte[] ops = program.getOps();
+        int top = 0;
+        
+        for (int i = 0; i < ops.length; i++) {
+            byte op = ops[i];
+            if (op == CompiledExpression.CONST) {
+                stack[top++] = constants[i].longValue();
+                continue;
+            }
+            long b = stack[--top];
+            long a = stack[top - 1];
+            stack[top - 1] = op == CompiledExpression.ADD ? Math.addExact(a, b)
+                : op == CompiledExpression.SUB ? Math.subtractExact(a, b) : Math.multiplyExact(a, b);
+        }
+        return stack[0];
+    }
+    
+    // Константы переводятся в BigDecimal один раз и хранятся в самом выражении.
+    // Литерал разбирается из исходной строки, а не из double: 12345678901234567890
+    // и 0.1 остаются точными
+    private BigDecimal[] decimalConstants(CompiledExpression program) {
+        BigDecimal[] constants = program.getDecimalConstants();
+        if (constants != null) {
+            return constants;
+        }
+        
+        byte[] ops = program.getOps();
+        String source = program.getSource();
+        int[] positions = program.getPositions();
+        constants = new BigDecimal[ops.length];
+        boolean integerArithmetic = true;
+        for (int i = 0; i < ops.length; i++) {
+            byte op = ops[i];
+            if (op == CompiledExpression.CONST) {
+                // Константа e записана в строке именем (e или exp), остальные - числом
+                constants[i] = Character.isLetter(source.charAt(positions[i])) ? E : literal(source, positions[i]);
+                integerArithmetic &= constants[i].scale() == 0 && constants[i].unscaledValue().bitLength() < Long.SIZE;
+            } else {
+                integerArithmetic &= op == CompiledExpression.ADD || op == CompiledExpression.SUB || op == CompiledExpression.MUL;
+            }
+        }
+        program.setDecimalConstants(constants, integerArithmetic);
+        return constants;
+    }
+    
+    // Лексер уже проверил запись числа: цифры и не больше одной точки
+    private static BigDecimal literal(String source, int start) {
+        int end = start;
+        while (end < source.length() && (source.charAt(end) >= '0' && source.charAt(end) <= '9' || source.charAt(end) == '.')) {
+            end++;
+        }
+        return new BigDecimal(source.substring(start, end));
+    }
+    
+    // position - позиция операции в исходной строке для сообщения об ошибке.
+    // ArithmeticException от BigDecimal (бесконечная дробь без ограничения точности,
+    // например 1/3, или выход порядка за пределы int) превращается в код ошибки
+    private BigDecimal applyOperation(byte op, BigDecimal a, BigDecimal b, MathContext mathContext,
+                                      int position) throws CalculationException {
+        try {
+            switch (op) {
+                case CompiledExpression.ADD: return a.add(b, mathContext);
+                case CompiledExpression.SUB: return a.subtract(b, mathContext);
+                case CompiledExpression.MUL: return a.multiply(b, mathContext);
+                case CompiledExpression.DIV: 
+                    if (b.signum() == 0) throw new CalculationException(CalculationStatus.DIVISION_BY_ZERO, position);
+                    return a.divide(b, mathContext);
+                case CompiledExpression.POW: return power(a, b, mathContext, position);
+                default: throw new CalculationException(CalculationStatus.UNKNOWN_OPERATION, position);
+            }
+        } catch (ArithmeticException e) {
+            throw new CalculationException(CalculationStatus.NOT_REPRESENTABLE, position);
+        }
+    }
+    
+    // Целая степень считается точно, дробная - через double
+    private BigDecimal power(BigDecimal a, BigDecimal b, MathContext mathContext, int position) throws CalculationException {
+        if (!isInteger(b) || b.abs().compareTo(MAX_POWER) > 0) {
+            return toDecimal(Math.pow(a.doubleValue(), b.doubleValue()), mathContext, position);
+        }
+        if (a.signum() == 0 && b.signum() < 0) {
+            throw new CalculationException(CalculationStatus.DIVISION_BY_ZERO, position);
+        }
+        int exponent = b.intValue();
+        if (mathContext.getPrecision() > 0) {
+            return a.pow(exponent, mathContext);
+        }
+        if ((long) a.precision() * Math.abs(exponent) > MAX_UNLIMITED_DIGITS) {
+            throw new CalculationException(CalculationStatus.NOT_REPRESENTABLE, position);
+        }
+        // pow с отрицательной степенью без ограничения точности не работает:
+        // 2^(-1) считается как 1/2^1 и дает точную дробь, если она конечна
+        return exponent >= 0 ? a.pow(exponent) : BigDecimal.ONE.divide(a.pow(-exponent), mathContext);
+    }
+    
+    // Факториал целого числа считается точно, логарифм и дробный факториал - через double
+    private BigDecimal applyFunction(byte op, BigDecimal a, MathContext mathContext, int position) throws CalculationException {
+        if (op == CompiledExpression.FACTORIAL && a.signum() < 0) {
+            throw new CalculationException(CalculationStatus.NEGATIVE_FACTORIAL, position);
+        }
+        if (op == CompiledExpression.FACTORIAL && isInteger(a) && a.compareTo(MAX_EXACT_FACTORIAL) <= 0) {
+            return new BigDecimal(CalculatorModel.factorialExact(a.intValue()), mathContext);
+        }
+        if (op == CompiledExpression.FACTORIAL) {
+            return toDecimal(CalculatorModel.factorial(a.doubleValue()), mathContext, position);
+        }
+        return toDecimal(CalculatorModel.log2(a.doubleValue()), mathContext, position);
+    }
+    
+    private static boolean isInteger(BigDecimal value) {
+        return value.signum() == 0 || value.scale() <= 0 || value.stripTrailingZeros().scale() <= 0;
+    }
+    
+    // Результат через double верен лишь до 16-17 знаков: берется его кратчайшая
+    // десятичная запись, а не точное двоичное значение с ложными цифрами
+    private static BigDecimal toDecimal(double value, MathContext mathContext, int position) throws CalculationException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new CalculationException(CalculationStatus.NOT_REPRESENTABLE, position);
+        }
+        return BigDecimal.valueOf(value).round(mathContext);
+    }
+}
+
+// Однопроходный лексер: пропускает пробелы, распознает ** как ^, имена и числа.
+// Числа разбираются на месте, без промежуточных строк
+class ExpressionLexer {
+    static final int END = 0;
+    static final int NUMBER = 1;
+    static final int NAME = 2;
+    static final int OPERATOR = 3;
+    static final int OPEN = 4;
+    static final int CLOSE = 5;
+    
+    // Степени десяти, точно представимые в double
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    
+    private final String text;
+    private int pos;
+    private int start;
+    private double number;
+    private char operator;
+    
+    public ExpressionLexer(String text) {
+        this.text = text;
+    }
+    
+    public int next() throws CalculationException {
+        skipWhitespace();
+        start = pos;
+        if (pos >= text.length()) {
+            return END;
+        }
+        
+        char c = text.charAt(pos);
+        if (isDigit(c) || c == '.') {
+            number = readNumber();
+            return NUMBER;
+        }
+        if (Character.isLetter(c)) {
+            while (pos < text.length() && Character.isLetterOrDigit(text.charAt(pos))) {
+                pos++;
+            }
+            return NAME;
+        }
+        pos++;
+        if (c == '*' && pos < text.length() && text.charAt(pos) == '*') {
+            pos++;
+            operator = '^';
+            return OPERATOR;
+        }
+        if (isOperator(c)) {
+            operator = c;
+            return OPERATOR;
+        }
+        if (c == '(') return OPEN;
+        if (c == ')') return CLOSE;
+        throw new CalculationException(CalculationStatus.INVALID_CHARACTER, start,
+                                       "Недопустимый символ '" + c + "'");
+    }
+    
+    // Следующий значимый символ без сдвига позиции: границы последней лексемы
+    // остаются прежними, и getName после peek возвращает имя без пробелов
+    public char peek() {
+        int i = pos;
+        while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        return i < text.length() ? text.charAt(i) : 0;
+    }
+    
+    // Позиция начала последней лексемы
+    public int getPosition() { return start; }
+    public double getNumber() { return number; }
+    public char getOperator() { return operator; }
+    
+    public boolean nameEquals(String name) {
+        return pos - start == name.length() && text.startsWith(name, start);
+    }
+    
+    public String getName() {
+        return text.substring(start, pos);
+    }
+    
+    private void skipWhitespace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+    
+    // Для чисел до 2^53 с не более чем 22 знаками после точки результат
+    // одного деления точен так же, как у Double.parseDouble. Более длинные
+    // записи (редкий случай) разбираются стандартным методом
+    private double readNumber() throws CalculationException {
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean point = false;
+        boolean exact = true;
+        
+        for (; pos < text.length(); pos++) {
+            char c = text.charAt(pos);
+            if (isDigit(c)) {
+                digits++;
+                if (point) fractionDigits++;
+                if (mantissa < MAX_EXACT_MANTISSA) {
+                    mantissa = mantissa * 10 + (c - '0');
+                } else {
+                    exact = false;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else if (c == '.') {
+                throw new CalculationException(CalculationStatus.INVALID_NUMBER, start);
+            } else {
+                break;
+            }
+        }
+        
+        if (digits == 0) {
+            throw new CalculationException(CalculationStatus.INVALID_NUMBER, start);
+        }
+        if (!exact || mantissa > MAX_EXACT_MANTISSA || fractionDigits >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(text.substring(start, pos));
+        }
+        return fractionDigits == 0 ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+    }
+    
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+    
+    private static boolean isOperator(char c) {
+        return c == '+' || c == '-' || c == '*' || c == '/' || c == '^' || c == '!';
+    }
+}
+
+// Метрики конвейера вычислений: задержки этапов, ошибки по кодам и попадания в кэш.
+// Включаются при запуске: -Dcalculator.metrics=true. ENABLED - константа, поэтому
+// при выключенных метриках JIT убирает все замеры из горячего пути
+class CalculatorMetrics {
+    static final boolean ENABLED = Boolean.getBoolean("calculator.metrics");
+    
+    // Этапы: лексер и перевод в ОПН выполняются за один проход и замеряются вместе
+    static final int CONVERT = 0;
+    static final int FOLD = 1;
+    static final int EVALUATE = 2;
+    static final int BULK = 3;
+    static final String[] STAGE_NAMES = { "разбор", "оптимизация", "вычисление", "пакетное вычисление" };
+    
+    private final ExpressionCache cache;
+    private final LatencyHistogram[] stages = new LatencyHistogram[STAGE_NAMES.length];
+    private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private ScheduledExecutorService dumper;
+    
+    public CalculatorMetrics(ExpressionCache cache) {
+        this.cache = cache;
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+    
+    public void record(int stage, long nanos) {
+        stages[stage].record(nanos);
+    }
+    
+    public void recordError(CalculationStatus status) {
+        errors.computeIfAbsent(status.name(), type -> new LongAdder()).increment();
+    }
+    
+    public MetricsSnapshot snapshot() {
+        MetricsSnapshot snapshot = new MetricsSnapshot(cache.getHits(), cache.getMisses(), cache.getEvictions());
+        for (int i = 0; i < stages.length; i++) {
+            snapshot.getStages().put(STAGE_NAMES[i], stages[i].snapshot());
+        }
+        errors.forEach((type, count) -> snapshot.getErrors().put(type, count.sum()));
+        return snapshot;
+    }
+    
+    // Периодически перезаписывает файл текущим снимком метрик
+    public synchronized void startDump(Path file, long period, TimeUnit unit) {
+        stopDump();
+        dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "calculator-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(file), period, period, unit);
+    }
+    
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdown();
+            dumper = null;
+        }
+    }
+    
+    public void dump(Path file) {
+        try {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, snapshot().toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Ошибка записи метрик: " + e.getMessage());
+        }
+    }
+}
+
+// Гистограмма задержек в духе HdrHistogram: логарифмические уровни по 16 интервалов,
+// относительная погрешность около 6%. Запись - одна атомарная операция без блокировок
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(indexOf(nanos));
+        total.add(nanos);
+        max.accumulate(nanos);
+    }
+    
+    public LatencySnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        long maxValue = max.get();
+        return new LatencySnapshot(count, count == 0 ? 0 : total.sum() / count,
+            Math.min(percentile(copy, count, 0.50), maxValue), Math.min(percentile(copy, count, 0.90), maxValue),
+            Math.min(percentile(copy, count, 0.99), maxValue), Math.min(percentile(copy, count, 0.999), maxValue),
+            maxValue);
+    }
+    
+    private static int indexOf(long value) {
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        if (shift < 0) {
+            return (int) value;
+        }
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+    
+    // Верхняя граница интервала
+    private static long valueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return ((long) (SUB_BUCKETS + index % SUB_BUCKETS + 1) << shift) - 1;
+    }
+    
+    private static long percentile(long[] counts, long count, double fraction) {
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return valueOf(i);
+            }
+        }
+        return 0;
+    }
+}
+
+// Снимок задержек одного этапа, в наносекундах
+class LatencySnapshot {
+    private final long count;
+    private final long mean;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
+    private final long max;
+    
+    public LatencySnapshot(long count, long mean, long p50, long p90, long p99, long p999, long max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+    
+    public long getCount() { return count; }
+    public long getMean() { return mean; }
+    public long getP50() { return p50; }
+    public long getP90() { return p90; }
+    public long getP99() { return p99; }
+    public long getP999() { return p999; }
+    public long getMax() { return max; }
+    
+    @Override
+    public String toString() {
+        return "n=" + count + " среднее=" + mean + " p50=" + p50 + " p90=" + p90
+            + " p99=" + p99 + " p99.9=" + p999 + " макс=" + max + " нс";
+    }
+}
+
+// Снимок всех метрик калькулятора
+class MetricsSnapshot {
+    private final Map<String, LatencySnapshot> stages = new LinkedHashMap<>();
+    private final Map<String, Long> errors = new TreeMap<>();
+    private final long cacheHits;
+    private final long cacheMisses;
+    private final long cacheEvictions;
+    
+    public MetricsSnapshot(long cacheHits, long cacheMisses, long cacheEvictions) {
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+        this.cacheEvictions = cacheEvictions;
+    }
+    
+    public Map<String, LatencySnapshot> getStages() { return stages; }
+    public Map<String, Long> getErrors() { return errors; }
+    public long getCacheHits() { return cacheHits; }
+    public long getCacheMisses() { return cacheMisses; }
+    public long getCacheEvictions() { return cacheEvictions; }
+    
+    public double getCacheHitRate() {
+        long total = cacheHits + cacheMisses;
+        return total == 0 ? 0 : (double) cacheHits / total;
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        stages.forEach((stage, latency) -> sb.append(stage).append(": ").append(latency).append('\n'));
+        sb.append("кэш: попаданий=").append(cacheHits).append(" промахов=").append(cacheMisses)
+          .append(" вытеснений=").append(cacheEvictions)
+          .append(String.format(" доля попаданий=%.3f", getCacheHitRate())).append('\n');
+        errors.forEach((type, count) -> sb.append("ошибки ").append(type).append(": ").append(count).append('\n'));
+        return sb.toString();
+    }
+}
+
+// Коды результата вычисления и их сообщения по умолчанию
+enum CalculationStatus {
+    OK(""),
+    INVALID_CHARACTER("Недопустимый символ"),
+    INVALID_NUMBER("Некорректное число"),
+    UNKNOWN_IDENTIFIER("Неизвестный идентификатор"),
+    UNKNOWN_OPERATION("Неизвестная операция"),
+    UNBALANCED_PARENTHESES("Несбалансированные скобки в выражении"),
+    TOO_MANY_OPERATORS("Превышено максимальное количество операций"),
+    INVALID_EXPRESSION("Некорректное выражение"),
+    DIVISION_BY_ZERO("Деление на ноль"),
+    NEGATIVE_FACTORIAL("Факториал отрицательного числа"),
+    NOT_REPRESENTABLE("Результат не представим в десятичном виде"),
+    INVALID_ARGUMENTS("Некорректные аргументы вычисления"),
+    CIRCULAR_REFERENCE("Циклическая ссылка");
+    
+    private final String message;
+    
+    CalculationStatus(String message) {
+        this.message = message;
+    }
+    
+    public String getMessage() { return message; }
+}
+
+// Ошибка вычисления с кодом и позицией в строке (-1, если позиция неизвестна).
+// Стек вызовов не заполняется: пользователю нужны только сообщение и позиция,
+// а создание такого исключения стоит не больше обычного объекта
+class CalculationException extends Exception {
+    private static final long serialVersionUID = 1L;
+    
+    private final CalculationStatus status;
+    private final int offset;
+    
+    public CalculationException(CalculationStatus status, int offset) {
+        this(status, offset, status.getMessage());
+    }
+    
+    public CalculationException(CalculationStatus status, int offset, String message) {
+        super(message, null, false, false);
+        this.status = status;
+        this.offset = offset;
+    }
+    
+    public CalculationStatus getStatus() { return status; }
+    public int getOffset() { return offset; }
+}
+
+// Результат вычисления без исключений: значение либо код ошибки с позицией
+class CalculationResult {
+    private final CalculationStatus status;
+    private final double value;
+    private final int offset;
+    private final String message;
+    
+    private CalculationResult(CalculationStatus status, double value, int offset, String message) {
+        this.status = status;
+        this.value = value;
+        this.offset = offset;
+        this.message = message;
+    }
+    
+    public static CalculationResult success(double value) {
+        return new CalculationResult(CalculationStatus.OK, value, -1, null);
+    }
+    
+    public static CalculationResult failure(CalculationStatus status, int offset, String message) {
+        return new CalculationResult(status, Double.NaN, offset, message);
+    }
+    
+    public boolean isSuccess() { return status == CalculationStatus.OK; }
+    public CalculationStatus getStatus() { return status; }
+    // При ошибке значение равно NaN
+    public double getValue() { return value; }
+    public int getOffset() { return offset; }
+    public String getMessage() { return message; }
+}
+
+// Скомпилированное выражение - программа в обратной польской нотации:
+// коды операций и параллельный массив констант
+class CompiledExpression {
+    static final byte CONST = 0;
+    static final byte ADD = 1;
+    static final byte SUB = 2;
+    static final byte MUL = 3;
+    static final byte DIV = 4;
+    static final byte POW = 5;
+    static final byte FACTORIAL = 6;
+    static final byte LOG2 = 7;
+    static final byte VAR = 8;
+    
+    private final byte[] ops;
+    private final double[] constants;
+    // Исходная строка и позиции лексем в ней: для сообщений об ошибках
+    // и для точного разбора литералов в десятичном режиме
+    private final String source;
+    private final int[] positions;
+    private final int maxDepth;
+    private final String[] variables;
+    // Ошибка разбора, если выражение не скомпилировалось (хранится в кэше вместо программы),
+    // и готовый результат с этой ошибкой для calculateResult
+    private final CalculationException error;
+    private final CalculationResult failure;
+    
+    // Счетчик вычислений и сгенерированный код для горячих выражений
+    private long invocations;
+    private volatile boolean generated;
+    private volatile GeneratedFormula formula;
+    
+    // Программа до свертки констант и константы в BigDecimal для десятичного режима, создаются при первом использовании
+    private volatile BigDecimal[] decimalConstants;
+    private volatile boolean integerArithmetic;
+    private final CompiledExpression unfolded;
+    
+    public CompiledExpression(String source, byte[] ops, double[] constants, int[] positions, int size, int maxDepth,
+                              String[] variables) {
+        this(source, ops, constants, positions, size, maxDepth, variables, null);
+    }
+    
+    public CompiledExpression(String source, byte[] ops, double[] constants, int[] positions, int size, int maxDepth,
+                              String[] variables, CompiledExpression unfolded) {
+        this.source = source;
+        this.ops = Arrays.copyOf(ops, size);
+        this.constants = Arrays.copyOf(constants, size);
+        this.positions = Arrays.copyOf(positions, size);
+        this.maxDepth = maxDepth;
+        this.variables = variables.clone();
+        this.unfolded = unfolded;
+        this.error = null;
+        this.failure = null;
+    }
+    
+    public CompiledExpression(CalculationException error) {
+        this.ops = new byte[0];
+        this.constants = new double[0];
+        this.source = "";
+        this.positions = new int[0];
+        this.maxDepth = 0;
+        this.variables = new String[0];
+        this.unfolded = null;
+        this.error = error;
+        this.failure = CalculationResult.failure(error.getStatus(), error.getOffset(), error.getMessage());
+    }
+    
+    public byte[] getOps() { return ops; }
+    public double[] getConstants() { return constants; }
+    public String getSource() { return source; }
+    public int[] getPositions() { return positions; }
+    public String[] getVariables() { return variables; }
+    public CalculationException getError() { return error; }
+    public CalculationResult getFailure() { return failure; }
+    public CompiledExpression getUnfolded() { return unfolded != null ? unfolded : this; }
+    
+    // Счетчик не синхронизирован: для порога генерации точность не важна
+    long countInvocations(int count) { return invocations += count; }
+    boolean isGenerated() { return generated; }
+    GeneratedFormula getFormula() { return formula; }
+    
+    void setFormula(GeneratedFormula formula) {
+        this.formula = formula;
+        this.generated = true;
+    }
+    
+    BigDecimal[] getDecimalConstants() { return decimalConstants; }
+    boolean isIntegerArithmetic() { return integerArithmetic; }
+    
+    void setDecimalConstants(BigDecimal[] decimalConstants, boolean integerArithmetic) {
+        this.integerArithmetic = integerArithmetic;
+        this.decimalConstants = decimalConstants;
     }
+    
+    // Максимальная глубина стека при вычислении
+    public int getMaxDepth() { return maxDepth; }
 }
 
-// Model - содержит логику вычислений
-class CalculatorModel {
-    public double calculate(String expression) throws Exception {
-        expression = expression.replaceAll("\\s+", "");
-        
-        // Проверка скобок
-        if (!checkParentheses(expression)) {
-            throw new Exception("Несбалансированные скобки в выражении");
+// Выражение, скомпилированное в байткод JVM. columns[i][row] - значение i-й переменной.
+// Исключений нет: при ошибке вычисления результат равен NaN
+interface GeneratedFormula {
+    double evaluate(double[][] columns, int row);
+}
+
+// Генерирует для выражения класс с прямолинейным кодом вычисления и загружает
+// его как скрытый класс. Такой код JIT встраивает и оптимизирует целиком,
+// без цикла интерпретатора. Ветвлений в коде нет, поэтому StackMapTable не нужна.
+// Ошибки тоже проверяются без ветвлений: в локальной переменной накапливается
+// сумма 1/делитель и значений факториалов. При делении на ноль или факториале
+// отрицательного числа она становится бесконечной или NaN, и к результату
+// прибавляется (сумма - сумма) = NaN. Неконечный результат затем
+// перепроверяется интерпретатором
+class FormulaCompiler {
+    private static final int CLASS_VERSION = 52;
+    private static final int MAX_CODE_LENGTH = 65535;
+    private static final int MAX_CONSTANT_POOL = 65000;
+    private static final String CLASS_NAME = "GeneratedFormulaImpl";
+    private static final String MODEL = "CalculatorModel";
+    
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ILOAD_2 = 0x1c;
+    private static final int DLOAD_3 = 0x29;
+    private static final int DSTORE_3 = 0x4a;
+    private static final int POP2 = 0x58;
+    private static final int DUP2 = 0x5c;
+    private static final int DUP2_X2 = 0x5e;
+    private static final int DCONST_0 = 0x0e;
+    private static final int DCONST_1 = 0x0f;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC2_W = 0x14;
+    private static final int AALOAD = 0x32;
+    private static final int DALOAD = 0x31;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int DRETURN = 0xaf;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    
+    // Возвращает null, если выражение слишком велико для одного метода
+    static GeneratedFormula compile(CompiledExpression rpn) {
+        try {
+            byte[] bytes = generate(rpn);
+            if (bytes == null) {
+                return null;
+            }
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class));
+            return (GeneratedFormula) constructor.invoke();
+        } catch (Throwable e) {
+            // Остаемся на интерпретаторе
+            return null;
         }
+    }
+    
+    private static byte[] generate(CompiledExpression rpn) throws IOException {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int anInterface = pool.classRef("GeneratedFormula");
+        int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+        int initName = pool.utf8("<init>");
+        int initType = pool.utf8("()V");
+        int evaluateName = pool.utf8("evaluate");
+        int evaluateType = pool.utf8("([[DI)D");
+        int codeName = pool.utf8("Code");
         
-        // Проверка количества операций
-        if (countOperators(expression) > 15) {
-            throw new Exception("Превышено максимальное количество операций (15)");
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        byte[] ops = rpn.getOps();
+        double[] constants = rpn.getConstants();
+        // Контрольная сумма в локальной переменной 3 (double занимает слоты 3 и 4)
+        code.write(DCONST_0);
+        code.write(DSTORE_3);
+        for (int i = 0; i < ops.length; i++) {
+            switch (ops[i]) {
+                case CompiledExpression.CONST:
+                    if (Double.doubleToRawLongBits(constants[i]) == 0L) {
+                        code.write(DCONST_0);
+                    } else if (constants[i] == 1) {
+                        code.write(DCONST_1);
+                    } else {
+                        writeIndexed(code, LDC2_W, pool.doubleConstant(constants[i]));
+                    }
+                    break;
+                case CompiledExpression.VAR:
+                    code.write(ALOAD_1);
+                    writeIntConstant(code, (int) constants[i]);
+                    code.write(AALOAD);
+                    code.write(ILOAD_2);
+                    code.write(DALOAD);
+                    break;
+                case CompiledExpression.ADD: code.write(DADD); break;
+                case CompiledExpression.SUB: code.write(DSUB); break;
+                case CompiledExpression.MUL: code.write(DMUL); break;
+                case CompiledExpression.DIV:
+                    // a b -> a b b 1 -> a b 1 b -> a b 1/b; сумма += 1/b; a / b
+                    code.write(DUP2);
+                    code.write(DCONST_1);
+                    code.write(DUP2_X2);
+                    code.write(POP2);
+                    code.write(DDIV);
+                    writeGuard(code);
+                    code.write(DDIV);
+                    break;
+                case CompiledExpression.POW:
+                    writeIndexed(code, INVOKESTATIC, pool.methodRef("java/lang/Math", "pow", "(DD)D"));
+                    break;
+                case CompiledExpression.FACTORIAL:
+                    writeIndexed(code, INVOKESTATIC, pool.methodRef(MODEL, "factorial", "(D)D"));
+                    code.write(DUP2);
+                    writeGuard(code);
+                    break;
+                case CompiledExpression.LOG2:
+                    writeIndexed(code, INVOKESTATIC, pool.methodRef(MODEL, "log2", "(D)D"));
+                    break;
+                default:
+                    return null;
+            }
+            if (code.size() >= MAX_CODE_LENGTH || pool.size() >= MAX_CONSTANT_POOL) {
+                return null;
+            }
         }
+        // результат - (сумма - сумма)
+        code.write(DLOAD_3);
+        code.write(DLOAD_3);
+        code.write(DSUB);
+        code.write(DSUB);
+        code.write(DRETURN);
         
-        // Обработка специальных функций
-        expression = preprocessExpression(expression);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(CLASS_VERSION);
+        pool.writeTo(out);
+        out.writeShort(0x0030); // ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(anInterface);
+        out.writeShort(0); // поля
+        out.writeShort(2); // методы
         
-        // Преобразование в обратную польскую нотацию
-        String rpn = convertToRPN(expression);
-        
-        // Вычисление выражения
-        return evaluateRPN(rpn);
+        // Конструктор по умолчанию
+        byte[] init = { (byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit, (byte) RETURN };
+        writeMethod(out, initName, initType, codeName, 1, 1, init);
+        // double evaluate(double[][] columns, int row); на стеке double занимает две ячейки,
+        // при делении сверх операндов на стеке лежат еще три значения
+        writeMethod(out, evaluateName, evaluateType, codeName, rpn.getMaxDepth() * 2 + 6, 5, code.toByteArray());
+        out.writeShort(0); // атрибуты класса
+        return bytes.toByteArray();
     }
     
-    private boolean checkParentheses(String expr) {
-        Stack<Character> stack = new Stack<>();
-        for (char c : expr.toCharArray()) {
-            if (c == '(') {
-                stack.push(c);
-            } else if (c == ')') {
-                if (stack.isEmpty()) return false;
-                stack.pop();
-            }
+    private static void writeMethod(DataOutputStream out, int name, int type, int codeName,
+                                    int maxStack, int maxLocals, byte[] code) throws IOException {
+        out.writeShort(0x0001); // ACC_PUBLIC
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // таблица исключений
+        out.writeShort(0); // атрибуты кода
+    }
+    
+    // Прибавляет значение с вершины стека к контрольной сумме
+    private static void writeGuard(ByteArrayOutputStream code) {
+        code.write(DLOAD_3);
+        code.write(DADD);
+        code.write(DSTORE_3);
+    }
+    
+    private static void writeIndexed(ByteArrayOutputStream code, int opcode, int index) {
+        code.write(opcode);
+        code.write(index >> 8);
+        code.write(index);
+    }
+    
+    private static void writeIntConstant(ByteArrayOutputStream code, int value) {
+        if (value <= 5) {
+            code.write(ICONST_0 + value);
+        } else if (value <= Byte.MAX_VALUE) {
+            code.write(BIPUSH);
+            code.write(value);
+        } else {
+            code.write(SIPUSH);
+            code.write(value >> 8);
+            code.write(value);
         }
-        return stack.isEmpty();
     }
     
-    private int countOperators(String expr) {
-        int count = 0;
-        for (int i = 0; i < expr.length(); i++) {
-            char c = expr.charAt(i);
-            if (isOperator(c) || (c == '*' && i < expr.length()-1 && expr.charAt(i+1) == '*')) {
-                count++;
-                if (c == '*' && i < expr.length()-1 && expr.charAt(i+1) == '*') i++;
-            }
+    // Пул констант класса с повторным использованием одинаковых записей
+    private static class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private int size = 1;
+        
+        int size() { return size; }
+        
+        int utf8(String value) throws IOException {
+            Integer index = indexes.get("U" + value);
+            if (index != null) return index;
+            out.writeByte(1);
+            out.writeUTF(value);
+            return register("U" + value, 1);
+        }
+        
+        int classRef(String name) throws IOException {
+            Integer index = indexes.get("C" + name);
+            if (index != null) return index;
+            int nameIndex = utf8(name);
+            out.writeByte(7);
+            out.writeShort(nameIndex);
+            return register("C" + name, 1);
+        }
+        
+        int methodRef(String owner, String name, String type) throws IOException {
+            String key = "M" + owner + "." + name + type;
+            Integer index = indexes.get(key);
+            if (index != null) return index;
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(typeIndex);
+            int nameAndType = register("N" + name + type, 1);
+            out.writeByte(10);
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+            return register(key, 1);
+        }
+        
+        int doubleConstant(double value) throws IOException {
+            String key = "D" + Double.doubleToRawLongBits(value);
+            Integer index = indexes.get(key);
+            if (index != null) return index;
+            out.writeByte(6);
+            out.writeDouble(value);
+            // double занимает в пуле две позиции
+            return register(key, 2);
+        }
+        
+        private int register(String key, int slots) {
+            int index = size;
+            indexes.put(key, index);
+            size += slots;
+            return index;
+        }
+        
+        void writeTo(DataOutputStream target) throws IOException {
+            target.writeShort(size);
+            target.write(bytes.toByteArray());
         }
-        return count;
     }
+}
+
+// Пакетное вычисление по блокам строк: каждая инструкция программы применяется
+// сразу к BLOCK строкам простым циклом по массивам. Такие циклы для + - * / и x^2
+// JIT (C2, оптимизация SuperWord) переводит в SIMD-инструкции, обрабатывающие
+// несколько значений double за одну операцию. Остальные степени, факториал и
+// логарифм считаются в блоке поэлементно. Все циклы обращаются к элементам
+// по одному индексу j: при смещениях JIT не может доказать, что массивы не
+// пересекаются, и не векторизует цикл. Поэтому участок столбца копируется
+// в буфер, а константа не заполняет буфер, а обрабатывается отдельным циклом.
+// Ошибки проверяются как в FormulaCompiler: через контрольную сумму 1/делитель
+// и значений факториалов по каждой строке
+class BlockEvaluator {
+    static final int BLOCK = 256;
+    // Векторизация циклов доступна, если JIT не запущен с -XX:-UseSuperWord
+    static final boolean VECTORIZED = superWordEnabled();
+    
+    // Для каждой ячейки стека: буфер значений блока либо одна константа
+    private double[][] buffers = new double[0][];
+    private boolean[] constant = new boolean[0];
+    private double[] values = new double[0];
+    private final double[] guard = new double[BLOCK];
+    // Деление на константный ноль: блок сразу уходит на построчную проверку
+    private boolean failed;
     
-    private String preprocessExpression(String expr) {
-        // Заменяем ** на ^ для единообразия
-        expr = expr.replace("**", "^");
+    // Вычисляет строки from..to (не больше BLOCK) в out. Возвращает false, если
+    // в блоке есть неконечное значение или ошибка: тогда out не изменяется,
+    // и блок нужно перепроверить интерпретатором
+    boolean evaluate(CompiledExpression rpn, double[][] columns, double[] out, int from, int to) {
+        int length = to - from;
+        ensureDepth(rpn.getMaxDepth());
+        Arrays.fill(guard, 0, length, 0);
+        failed = false;
+        byte[] ops = rpn.getOps();
+        double[] constants = rpn.getConstants();
+        int top = 0;
         
-        // Обрабатываем функции
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < expr.length(); i++) {
-            char c = expr.charAt(i);
+        for (int i = 0; i < ops.length; i++) {
+            byte op = ops[i];
             
-            if (c == 'e' && i+3 < expr.length() && expr.substring(i, i+4).equals("exp(")) {
-                sb.append("e^(");
-                i += 3;
-            } else if (c == 'l' && i+3 < expr.length() && expr.substring(i, i+4).equals("log(")) {
-                sb.append("log2(");
-                i += 3;
-            } else {
-                sb.append(c);
+            if (op == CompiledExpression.CONST) {
+                constant[top] = true;
+                values[top++] = constants[i];
+            }
+            else if (op == CompiledExpression.VAR) {
+                System.arraycopy(columns[(int) constants[i]], from, buffers[top], 0, length);
+                constant[top++] = false;
+            }
+            else if (op == CompiledExpression.FACTORIAL || op == CompiledExpression.LOG2) {
+                unary(op, top - 1, length);
+            }
+            else {
+                top--;
+                binary(op, top - 1, top, length);
             }
         }
         
-        return sb.toString();
+        materialize(0, length);
+        // Разность x - x равна 0 для конечного x и NaN для бесконечности и NaN
+        double[] result = buffers[0];
+        double check = 0;
+        for (int j = 0; j < length; j++) {
+            check += (result[j] - result[j]) + (guard[j] - guard[j]);
+        }
+        if (failed || check != 0) {
+            return false;
+        }
+        System.arraycopy(result, 0, out, from, length);
+        return true;
     }
     
-    private String convertToRPN(String expression) throws Exception {
-        StringBuilder output = new StringBuilder();
-        Stack<Character> stack = new Stack<>();
-        
-        for (int i = 0; i < expression.length(); i++) {
-            char c = expression.charAt(i);
-            
-            if (Character.isDigit(c) || c == '.') {
-                while (i < expression.length() && 
-                      (Character.isDigit(expression.charAt(i)) || expression.charAt(i) == '.')) {
-                    output.append(expression.charAt(i++));
+    private void binary(byte op, int left, int right, int length) {
+        double[] r = buffers[left];
+        if (constant[right]) {
+            materialize(left, length);
+            binaryConstant(op, r, values[right], length);
+        } else if (constant[left]) {
+            constantBinary(op, values[left], r, buffers[right], length);
+            constant[left] = false;
+        } else {
+            double[] y = buffers[right];
+            switch (op) {
+                case CompiledExpression.ADD:
+                    for (int j = 0; j < length; j++) r[j] += y[j];
+                    break;
+                case CompiledExpression.SUB:
+                    for (int j = 0; j < length; j++) r[j] -= y[j];
+                    break;
+                case CompiledExpression.MUL:
+                    for (int j = 0; j < length; j++) r[j] *= y[j];
+                    break;
+                case CompiledExpression.DIV:
+                    for (int j = 0; j < length; j++) guard[j] += 1 / y[j];
+                    for (int j = 0; j < length; j++) r[j] /= y[j];
+                    break;
+                default:
+                    for (int j = 0; j < length; j++) r[j] = Math.pow(r[j], y[j]);
+            }
+        }
+    }
+    
+    // Блок op константа
+    private void binaryConstant(byte op, double[] r, double c, int length) {
+        switch (op) {
+            case CompiledExpression.ADD:
+                for (int j = 0; j < length; j++) r[j] += c;
+                break;
+            case CompiledExpression.SUB:
+                for (int j = 0; j < length; j++) r[j] -= c;
+                break;
+            case CompiledExpression.MUL:
+                for (int j = 0; j < length; j++) r[j] *= c;
+                break;
+            case CompiledExpression.DIV:
+                failed |= c == 0;
+                for (int j = 0; j < length; j++) r[j] /= c;
+                break;
+            default:
+                // Math.pow(x, 2) точно равно x * x, остальные степени - поэлементно
+                if (c == 2) {
+                    for (int j = 0; j < length; j++) r[j] *= r[j];
+                } else {
+                    for (int j = 0; j < length; j++) r[j] = Math.pow(r[j], c);
                 }
-                output.append(' ');
-                i--;
-            } 
-            else if (Character.isLetter(c)) {
-                // Обработка констант (например, e)
-                if (c == 'e') {
-                    output.append(Math.E).append(' ');
+        }
+    }
+    
+    // Константа op блок; результат записывается в r
+    private void constantBinary(byte op, double c, double[] r, double[] y, int length) {
+        switch (op) {
+            case CompiledExpression.ADD:
+                for (int j = 0; j < length; j++) r[j] = c + y[j];
+                break;
+            case CompiledExpression.SUB:
+                for (int j = 0; j < length; j++) r[j] = c - y[j];
+                break;
+            case CompiledExpression.MUL:
+                for (int j = 0; j < length; j++) r[j] = c * y[j];
+                break;
+            case CompiledExpression.DIV:
+                for (int j = 0; j < length; j++) guard[j] += 1 / y[j];
+                for (int j = 0; j < length; j++) r[j] = c / y[j];
+                break;
+            default:
+                for (int j = 0; j < length; j++) r[j] = Math.pow(c, y[j]);
+        }
+    }
+    
+    private void unary(byte op, int slot, int length) {
+        materialize(slot, length);
+        double[] r = buffers[slot];
+        if (op == CompiledExpression.FACTORIAL) {
+            for (int j = 0; j < length; j++) r[j] = CalculatorModel.factorial(r[j]);
+            for (int j = 0; j < length; j++) guard[j] += r[j];
+        } else {
+            for (int j = 0; j < length; j++) r[j] = CalculatorModel.log2(r[j]);
+        }
+    }
+    
+    // Заполняет буфер ячейки ее константой
+    private void materialize(int slot, int length) {
+        if (constant[slot]) {
+            Arrays.fill(buffers[slot], 0, length, values[slot]);
+            constant[slot] = false;
+        }
+    }
+    
+    private void ensureDepth(int depth) {
+        if (buffers.length >= depth) {
+            return;
+        }
+        int size = buffers.length;
+        buffers = Arrays.copyOf(buffers, depth);
+        for (int i = size; i < depth; i++) {
+            buffers[i] = new double[BLOCK];
+        }
+        constant = new boolean[depth];
+        values = new double[depth];
+    }
+    
+    private static boolean superWordEnabled() {
+        try {
+            com.sun.management.HotSpotDiagnosticMXBean bean =
+                ManagementFactory.getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class);
+            return bean == null || Boolean.parseBoolean(bean.getVMOption("UseSuperWord").getValue());
+        } catch (RuntimeException e) {
+            // Параметра нет (не HotSpot): считаем, что векторизация возможна
+            return true;
+        }
+    }
+}
+
+// Ограниченный LRU-кэш скомпилированных выражений по исходной строке
+class ExpressionCache {
+    private final int maxSize;
+    private final LinkedHashMap<String, CompiledExpression> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+    
+    public ExpressionCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String, CompiledExpression>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+                if (size() > ExpressionCache.this.maxSize) {
+                    evictions++;
+                    return true;
                 }
+                return false;
             }
-            else if (isFunction(c, i, expression)) {
-                stack.push(c);
-                i += (c == 'l' ? 4 : 3); // Пропускаем "log2(" или "e^("
+        };
+    }
+    
+    public synchronized CompiledExpression get(String expression) {
+        CompiledExpression compiled = entries.get(expression);
+        if (compiled != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return compiled;
+    }
+    
+    public synchronized void put(String expression, CompiledExpression compiled) {
+        entries.put(expression, compiled);
+    }
+    
+    public synchronized void clear() {
+        entries.clear();
+    }
+    
+    // Счетчики попаданий, промахов и вытеснений
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized long getEvictions() { return evictions; }
+    public synchronized int size() { return entries.size(); }
+}
+
+// Таблица именованных формул, ссылающихся друг на друга, как ячейки в электронной
+// таблице. Ссылки на ячейки - переменные выражения, например "price*count+tax".
+// По ссылкам строится граф зависимостей, и после изменения пересчитываются только
+// зависящие от него формулы в топологическом порядке. Формулы одного уровня
+// не зависят друг от друга и при большом числе считаются параллельно
+class FormulaSheet {
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 256;
+    
+    private final CalculatorModel model;
+    private final Map<String, Cell> cells = new HashMap<>();
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    private int lastRecomputed;
+    // Номер текущего пересчета: им помечаются затронутые ячейки
+    private int epoch;
+    
+    public FormulaSheet(CalculatorModel model) {
+        this.model = model;
+    }
+    
+    // Уровни меньше порога считаются в вызывающем потоке
+    public synchronized int getParallelThreshold() {
+        return parallelThreshold;
+    }
+    
+    public synchronized void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+    
+    // Сколько формул было пересчитано при последнем изменении
+    public synchronized int getLastRecomputed() {
+        return lastRecomputed;
+    }
+    
+    public void setValue(String name, double value) {
+        setValues(Collections.singletonMap(name, value));
+    }
+    
+    // Изменяет несколько входных ячеек сразу; общие зависимые формулы пересчитываются один раз.
+    // Если в ячейке была формула, она заменяется значением
+    public synchronized void setValues(Map<String, Double> values) {
+        List<Cell> changed = new ArrayList<>();
+        for (Map.Entry<String, Double> entry : values.entrySet()) {
+            Cell cell = cellFor(entry.getKey());
+            unlink(cell);
+            cell.formula = null;
+            cell.compiled = null;
+            cell.inputs = new Cell[0];
+            cell.result = CalculationResult.success(entry.getValue());
+            changed.addAll(cell.dependents);
+        }
+        recompute(changed);
+    }
+    
+    // Записывает в ячейку формулу и пересчитывает ее и все зависящие от нее.
+    // Ошибка разбора или циклическая ссылка оставляют ячейку без изменений.
+    // Ссылка на еще не заданную ячейку создает ее со значением 0
+    public synchronized void setFormula(String name, String formula) throws CalculationException {
+        Set<String> references = references(formula);
+        Cell cell = cellFor(name);
+        if (references.contains(name) || reaches(cell, references)) {
+            throw new CalculationException(CalculationStatus.CIRCULAR_REFERENCE, -1,
+                                           "Циклическая ссылка в ячейке " + name);
+        }
+        String[] variables = references.toArray(new String[0]);
+        CompiledExpression compiled = model.compile(formula, variables);
+        
+        unlink(cell);
+        cell.formula = formula;
+        cell.compiled = compiled;
+        cell.inputs = new Cell[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            cell.inputs[i] = cellFor(variables[i]);
+            cell.inputs[i].dependents.add(cell);
+        }
+        recompute(Collections.singletonList(cell));
+    }
+    
+    // Значение ячейки или ошибка ее формулы; незаданная ячейка равна 0
+    public synchronized CalculationResult get(String name) {
+        Cell cell = cells.get(name);
+        return cell != null ? cell.result : CalculationResult.success(0);
+    }
+    
+    public double getValue(String name) {
+        return get(name).getValue();
+    }
+    
+    public synchronized String getFormula(String name) {
+        Cell cell = cells.get(name);
+        return cell != null ? cell.formula : null;
+    }
+    
+    private Cell cellFor(String name) {
+        return cells.computeIfAbsent(name, Cell::new);
+    }
+    
+    private void unlink(Cell cell) {
+        for (Cell input : cell.inputs) {
+            input.dependents.remove(cell);
+        }
+    }
+    
+    // Имена ячеек в формуле: все имена, кроме функций перед скобкой и константы e
+    private Set<String> references(String formula) throws CalculationException {
+        Set<String> names = new LinkedHashSet<>();
+        ExpressionLexer lexer = new ExpressionLexer(formula);
+        for (int token = lexer.next(); token != ExpressionLexer.END; token = lexer.next()) {
+            if (token != ExpressionLexer.NAME || lexer.nameEquals("e")) continue;
+            boolean function = lexer.nameEquals("log") || lexer.nameEquals("log2") || lexer.nameEquals("exp");
+            if (!function || lexer.peek() != '(') {
+                names.add(lexer.getName());
             }
-            else if (isOperator(c)) {
-                while (!stack.isEmpty() && getPriority(stack.peek()) >= getPriority(c)) {
-                    output.append(stack.pop()).append(' ');
+        }
+        return names;
+    }
+    
+    // Достижима ли одна из ячеек targets из cell по зависимостям (обход без рекурсии)
+    private boolean reaches(Cell cell, Set<String> targets) {
+        Set<Cell> visited = new HashSet<>();
+        List<Cell> stack = new ArrayList<>(cell.dependents);
+        while (!stack.isEmpty()) {
+            Cell current = stack.remove(stack.size() - 1);
+            if (!visited.add(current)) continue;
+            if (targets.contains(current.name)) return true;
+            stack.addAll(current.dependents);
+        }
+        return false;
+    }
+    
+    // Пересчитывает roots и все зависящие от них формулы. Затронутые ячейки
+    // делятся на уровни алгоритмом Кана: у формулы уровня считаются все
+    // затронутые входы, поэтому ячейки внутри уровня независимы
+    private void recompute(Collection<Cell> roots) {
+        int mark = ++epoch;
+        List<Cell> affected = new ArrayList<>();
+        List<Cell> stack = new ArrayList<>(roots);
+        while (!stack.isEmpty()) {
+            Cell cell = stack.remove(stack.size() - 1);
+            if (cell.mark != mark) {
+                cell.mark = mark;
+                affected.add(cell);
+                for (Cell dependent : cell.dependents) {
+                    stack.add(dependent);
                 }
-                stack.push(c);
             }
-            else if (c == '(') {
-                stack.push(c);
+        }
+        
+        List<Cell> level = new ArrayList<>();
+        for (Cell cell : affected) {
+            cell.pending = 0;
+            for (Cell input : cell.inputs) {
+                if (input.mark == mark) cell.pending++;
             }
-            else if (c == ')') {
-                while (!stack.isEmpty() && stack.peek() != '(') {
-                    output.append(stack.pop()).append(' ');
-                }
-                if (!stack.isEmpty() && stack.peek() == '(') {
-                    stack.pop();
-                }
-                if (!stack.isEmpty() && (stack.peek() == 'l' || stack.peek() == 'e')) {
-                    output.append(stack.pop()).append(' ');
+            if (cell.pending == 0) level.add(cell);
+        }
+        
+        while (!level.isEmpty()) {
+            List<Cell> current = level;
+            if (current.size() >= parallelThreshold) {
+                current.parallelStream().forEach(this::evaluate);
+            } else {
+                current.forEach(this::evaluate);
+            }
+            level = new ArrayList<>();
+            for (Cell cell : current) {
+                for (Cell dependent : cell.dependents) {
+                    if (--dependent.pending == 0) level.add(dependent);
                 }
             }
         }
+        lastRecomputed = affected.size();
+    }
+    
+    // Ошибка во входной ячейке передается зависимым формулам. Входная ячейка
+    // могла попасть в пересчет, если ее формулу заменили значением в том же setValues
+    private void evaluate(Cell cell) {
+        if (cell.compiled == null) return;
+        double[] values = new double[cell.inputs.length];
+        for (int i = 0; i < values.length; i++) {
+            CalculationResult input = cell.inputs[i].result;
+            if (!input.isSuccess()) {
+                cell.result = CalculationResult.failure(input.getStatus(), -1,
+                    "Ошибка в ячейке " + cell.inputs[i].name + ": " + input.getMessage());
+                return;
+            }
+            values[i] = input.getValue();
+        }
+        try {
+            cell.result = CalculationResult.success(model.evaluate(cell.compiled, values));
+        } catch (CalculationException e) {
+            cell.result = CalculationResult.failure(e.getStatus(), e.getOffset(), e.getMessage());
+        }
+    }
+    
+    private static class Cell {
+        final String name;
+        String formula;
+        CompiledExpression compiled;
+        // Ячейки, на которые ссылается формула, в порядке переменных compiled
+        Cell[] inputs = new Cell[0];
+        // Формулы, ссылающиеся на эту ячейку; входы формулы различны, поэтому повторов нет
+        final List<Cell> dependents = new ArrayList<>();
+        volatile CalculationResult result = CalculationResult.success(0);
+        // Номер пересчета, затронувшего ячейку, и число еще не пересчитанных затронутых входов
+        int mark;
+        int pending;
         
-        while (!stack.isEmpty()) {
-            output.append(stack.pop()).append(' ');
+        Cell(String name) {
+            this.name = name;
         }
+    }
+}
+
+// Замер производительности калькулятора: запуск с аргументом --bench [секунды].
+// Для каждого сценария выполняется прогрев, затем замеряются пропускная
+// способность, средняя задержка и объем памяти, выделенной на один вызов
+class CalculatorBenchmark {
+    private static final int BATCH = 1000;
+    
+    private static final String[][] SCENARIOS = {
+        { "короткое", "2+3*4" },
+        { "длинное", "1+2*3-4/5+6*7-8/9+10*11-12/13+14" },
+        { "вложенные скобки", "((((1+2)*3)-4)/((5+6)*(7-8)))" },
+        { "функции", "exp(2)*log(64)+5!" },
+        { "функции и скобки", "(exp(1)+log(8))*(3!-2)/(2**3)" }
+    };
+    
+    // Ошибочные выражения: сравнение исключений без стека с возвратом кода ошибки
+    private static final String[][] ERROR_SCENARIOS = {
+        { "деление на ноль", "1/(2-2)" },
+        { "синтаксическая ошибка", "2+*3" }
+    };
+    
+    // Деление на ноль в промежуточном шаге: байткод и блоки должны сообщать
+    // ту же ошибку, что и интерпретатор, а не возвращать конечное число
+    private static final String HOT_ERROR = "1/(1/(2-2))";
+    private static final String HOT_ERROR_BULK = "1/(1/(x-1))";
+    
+    // Число слагаемых в длинных выражениях для проверки линейности разбора
+    private static final int[] SCALING_TERMS = { 1_000, 10_000, 100_000, 1_000_000 };
+    private static final char[] SCALING_OPERATORS = { '+', '*', '-', '/' };
+    
+    // Пакетное вычисление по столбцам: сравнение интерпретатора, байткода и блоков
+    private static final String BULK_EXPRESSION = "x*y+x/(y+1)-x^2";
+    private static final int BULK_ROWS = 1 << 20;
+    // Размеры пакета, на которых сравниваются способы вычисления
+    private static final int[] BULK_SIZES = { 16, 256, 4096, BULK_ROWS };
+    
+    // Таблица формул: независимые цепочки ячеек c<цепочка>n<номер> = предыдущая*1.0001+1
+    private static final int SHEET_CHAINS = 1000;
+    private static final int SHEET_LENGTH = 20;
+    
+    // Результаты копятся здесь, чтобы JIT не выбросил вычисления
+    private static volatile double sink;
+    
+    public static void run(String[] options) {
+        long seconds = options.length > 0 ? Long.parseLong(options[0]) : 2;
+        long measureNanos = seconds * 1_000_000_000L;
         
-        return output.toString();
+        System.out.printf("%-32s %14s %10s %10s%n", "Сценарий", "оп/с", "нс/оп", "байт/оп");
+        for (String[] scenario : SCENARIOS) {
+            try {
+                // Без кэша выражение каждый раз разбирается заново
+                measure(scenario[0] + " (разбор)", new CalculatorModel(0), scenario[1], measureNanos, false);
+                measure(scenario[0] + " (кэш)", new CalculatorModel(), scenario[1], measureNanos, false);
+            } catch (Exception e) {
+                System.out.println(scenario[0] + ": ошибка " + e.getMessage());
+            }
+        }
+        for (String[] scenario : ERROR_SCENARIOS) {
+            measure(scenario[0] + " (исключение)", new CalculatorModel(), scenario[1], measureNanos, false);
+            measure(scenario[0] + " (результат)", new CalculatorModel(), scenario[1], measureNanos, true);
+        }
+        checkHotErrors();
+        measureScaling(measureNanos);
+        measureBulk(measureNanos);
+        measureSheet(measureNanos);
     }
     
-    private boolean isFunction(char c, int pos, String expr) {
-        if (c == 'e' && pos+2 < expr.length() && expr.charAt(pos+1) == '^' && expr.charAt(pos+2) == '(') {
-            return true;
+    private static void checkHotErrors() {
+        String interpreted = hotError(-1, -1);
+        String compiled = hotError(0, -1);
+        String blocks = hotError(-1, 0);
+        if (!compiled.equals(interpreted) || !blocks.equals(interpreted)) {
+            System.out.println("(расхождение: интерпретатор " + interpreted + ", байткод " + compiled
+                + ", блоки " + blocks + ")");
         }
-        if (c == 'l' && pos+4 < expr.length() && expr.substring(pos, pos+5).equals("log2(")) {
-            return true;
+    }
+    
+    // Статус и позиция ошибки одиночного и пакетного вычисления после прогрева
+    private static String hotError(int compileThreshold, int blockThreshold) {
+        CalculatorModel model = new CalculatorModel();
+        model.setCompileThreshold(compileThreshold);
+        model.setBlockThreshold(blockThreshold);
+        CalculationResult result = null;
+        for (int i = 0; i < 3; i++) {
+            result = model.calculateResult(HOT_ERROR);
         }
-        return false;
+        String bulk = "нет ошибки";
+        double[] x = new double[1024];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = i * 0.25 - 100;
+        }
+        try {
+            CompiledExpression expression = model.compile(HOT_ERROR_BULK, "x");
+            for (int i = 0; i < 3; i++) {
+                model.evaluate(expression, new double[][] { x }, new double[x.length]);
+            }
+        } catch (CalculationException e) {
+            bulk = e.getStatus() + " в позиции " + e.getOffset();
+        }
+        return result.getStatus() + " в позиции " + result.getOffset() + ", пакет: " + bulk;
     }
     
-    private double evaluateRPN(String rpn) throws Exception {
-        Stack<Double> stack = new Stack<>();
-        String[] tokens = rpn.split(" ");
+    private static void measureBulk(long measureNanos) {
+        double[] x = new double[BULK_ROWS];
+        double[] y = new double[BULK_ROWS];
+        for (int i = 0; i < BULK_ROWS; i++) {
+            x[i] = i % 1000 * 0.5;
+            y[i] = i % 17 + 1;
+        }
         
-        for (String token : tokens) {
-            if (token.isEmpty()) continue;
+        // нс/строку для каждого способа; "по умолчанию" - пороги модели без изменений
+        System.out.printf("%nПакет %s, нс/строку%s%n", BULK_EXPRESSION,
+                          BlockEvaluator.VECTORIZED ? "" : " (блоки без векторизации)");
+        System.out.printf("%-10s %14s %10s %10s %14s%n", "строк", "интерпретатор", "байткод", "блоки", "по умолчанию");
+        for (int size : BULK_SIZES) {
+            double[][] columns = { Arrays.copyOf(x, size), Arrays.copyOf(y, size) };
+            double[] out = new double[size];
+            // Порог генерации байткода и порог блочного вычисления: -1 - выключено
+            System.out.printf("%-10d %14.2f %10.2f %10.2f %14.2f%n", size,
+                              measureBulk(-1, -1, columns, out, measureNanos / BULK_SIZES.length),
+                              measureBulk(0, -1, columns, out, measureNanos / BULK_SIZES.length),
+                              measureBulk(-1, 0, columns, out, measureNanos / BULK_SIZES.length),
+                              measureBulk(null, null, columns, out, measureNanos / BULK_SIZES.length));
+        }
+    }
+    
+    // Возвращает нс/строку или NaN при ошибке; null - порог по умолчанию
+    private static double measureBulk(Integer compileThreshold, Integer blockThreshold,
+                                      double[][] columns, double[] out, long measureNanos) {
+        CalculatorModel model = new CalculatorModel();
+        if (compileThreshold != null) model.setCompileThreshold(compileThreshold);
+        if (blockThreshold != null) model.setBlockThreshold(blockThreshold);
+        try {
+            CompiledExpression expression = model.compile(BULK_EXPRESSION, "x", "y");
+            long end = System.nanoTime() + measureNanos / 4;
+            do {
+                model.evaluate(expression, columns, out);
+            } while (System.nanoTime() < end);
             
-            if (Character.isDigit(token.charAt(0))) {
-                stack.push(Double.parseDouble(token));
-            } 
-            else if (token.equals("e")) {
-                stack.push(Math.E);
-            }
-            else {
-                char op = token.charAt(0);
-                
-                if (op == '!') {
-                    double a = stack.pop();
-                    stack.push(factorial(a));
-                } 
-                else if (op == 'l' || op == 'e') {
-                    double a = stack.pop();
-                    if (op == 'l') {
-                        stack.push(Math.log(a) / Math.log(2));
-                    } else {
-                        stack.push(Math.exp(a));
-                    }
-                }
-                else {
-                    double b = stack.pop();
-                    double a = stack.pop();
-                    stack.push(applyOperation(op, a, b));
+            long start = System.nanoTime();
+            long now;
+            long rows = 0;
+            end = start + measureNanos / 2;
+            do {
+                model.evaluate(expression, columns, out);
+                rows += out.length;
+                now = System.nanoTime();
+            } while (now < end);
+            sink += out[out.length - 1];
+            return (double) (now - start) / rows;
+        } catch (CalculationException e) {
+            return Double.NaN;
+        }
+    }
+    
+    // Изменение одного входа таблицы пересчитывает одну цепочку, изменение
+    // всех входов - все формулы, по уровню из SHEET_CHAINS независимых ячеек за раз
+    private static void measureSheet(long measureNanos) {
+        FormulaSheet sheet = new FormulaSheet(new CalculatorModel());
+        Map<String, Double> inputs = new HashMap<>();
+        try {
+            for (int chain = 0; chain < SHEET_CHAINS; chain++) {
+                inputs.put(cellName(chain, 0), (double) chain);
+                for (int k = 1; k < SHEET_LENGTH; k++) {
+                    sheet.setFormula(cellName(chain, k), cellName(chain, k - 1) + "*1.0001+1");
                 }
             }
+        } catch (CalculationException e) {
+            System.out.println("таблица: ошибка " + e.getMessage());
+            return;
         }
         
-        return stack.pop();
+        System.out.printf("%n%-32s %14s %10s %12s%n", "Таблица формул", "оп/с", "мкс/оп", "пересчитано");
+        int[] counter = new int[1];
+        measureSheet("одна ячейка", sheet, measureNanos,
+            () -> sheet.setValue(cellName(counter[0] % SHEET_CHAINS, 0), counter[0]++));
+        measureSheet("все ячейки", sheet, measureNanos, () -> sheet.setValues(inputs));
+        sink += sheet.getValue(cellName(0, SHEET_LENGTH - 1));
     }
     
-    private boolean isOperator(char c) {
-        return c == '+' || c == '-' || c == '*' || c == '/' || c == '^' || c == '!';
+    private static void measureSheet(String name, FormulaSheet sheet, long measureNanos, Runnable change) {
+        long end = System.nanoTime() + measureNanos / 4;
+        do {
+            change.run();
+        } while (System.nanoTime() < end);
+        
+        long start = System.nanoTime();
+        long now;
+        long operations = 0;
+        end = start + measureNanos / 2;
+        do {
+            change.run();
+            operations++;
+            now = System.nanoTime();
+        } while (now < end);
+        
+        double elapsed = now - start;
+        System.out.printf("%-32s %14.0f %10.1f %12d%n", name,
+            operations / (elapsed / 1e9), elapsed / operations / 1e3, sheet.getLastRecomputed());
     }
     
-    private int getPriority(char op) {
-        switch (op) {
-            case '^': return 4;
-            case '!': return 4;
-            case 'e': case 'l': return 4; // Функции
-            case '*': case '/': return 3;
-            case '+': case '-': return 2;
-            case '(': return 1;
-            default: return 0;
+    private static String cellName(int chain, int index) {
+        return "c" + chain + "n" + index;
+    }
+    
+    // Время разбора длинных выражений: при линейной сложности время на символ
+    // не должно расти с длиной
+    private static void measureScaling(long measureNanos) {
+        System.out.printf("%n%-12s %12s %12s %12s%n", "Слагаемых", "символов", "мс/разбор", "нс/символ");
+        for (int terms : SCALING_TERMS) {
+            String expression = longExpression(terms);
+            CalculatorModel model = new CalculatorModel(0);
+            try {
+                long end = System.nanoTime() + measureNanos / 4;
+                do {
+                    model.compile(expression);
+                } while (System.nanoTime() < end);
+                
+                long start = System.nanoTime();
+                long now;
+                int operations = 0;
+                end = start + measureNanos / 2;
+                do {
+                    model.compile(expression);
+                    operations++;
+                    now = System.nanoTime();
+                } while (now < end);
+                sink += model.calculate(expression);
+                
+                double nanos = (double) (now - start) / operations;
+                System.out.printf("%-12d %12d %12.2f %12.1f%n", terms, expression.length(),
+                    nanos / 1e6, nanos / expression.length());
+            } catch (CalculationException e) {
+                System.out.println(terms + ": ошибка " + e.getMessage());
+            }
+        }
+    }
+    
+    // Выражение вида (1+2)*3-(4/5)+6..., скобки через каждые несколько слагаемых
+    private static String longExpression(int terms) {
+        StringBuilder sb = new StringBuilder(terms * 4);
+        for (int i = 0; i < terms; i++) {
+            if (i > 0) sb.append(SCALING_OPERATORS[i % SCALING_OPERATORS.length]);
+            if (i % 8 == 0) sb.append('(');
+            sb.append(i % 97 + 1);
+            if (i % 8 == 7 || i == terms - 1) sb.append(')');
         }
+        return sb.toString();
     }
     
-    private double factorial(double n) throws Exception {
-        if (n < 0) throw new Exception("Факториал отрицательного числа");
-        if (n % 1 != 0) throw new Exception("Факториал только для целых чисел");
+    // result - вычислять через calculateResult, иначе через calculate
+    private static void measure(String name, CalculatorModel model, String expression, long measureNanos,
+                                boolean result) {
+        double sum = 0;
+        long end = System.nanoTime() + measureNanos / 2;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < BATCH; i++) {
+                sum += call(model, expression, result);
+            }
+        }
         
-        int num = (int)n;
-        double result = 1;
-        for (int i = 2; i <= num; i++) {
-            result *= i;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long now;
+        long operations = 0;
+        end = start + measureNanos;
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                sum += call(model, expression, result);
+            }
+            operations += BATCH;
+            now = System.nanoTime();
+        } while (now < end);
+        long allocated = allocatedBytes() - allocatedBefore;
+        sink += sum;
+        
+        double elapsed = now - start;
+        System.out.printf("%-32s %14.0f %10.1f %10s%n", name,
+            operations / (elapsed / 1e9), elapsed / operations,
+            allocatedBefore < 0 ? "н/д" : String.format("%.1f", (double) allocated / operations));
+    }
+    
+    // Для ошибочного выражения возвращает позицию ошибки, чтобы вызов не был выброшен JIT
+    private static double call(CalculatorModel model, String expression, boolean result) {
+        if (result) {
+            CalculationResult value = model.calculateResult(expression);
+            return value.isSuccess() ? value.getValue() : value.getOffset();
+        }
+        try {
+            return model.calculate(expression);
+        } catch (CalculationException e) {
+            return e.getOffset();
         }
-        return result;
     }
     
-    private double applyOperation(char op, double a, double b) throws Exception {
-        switch (op) {
-            case '+': return a + b;
-            case '-': return a - b;
-            case '*': return a * b;
-            case '/': 
-                if (b == 0) throw new Exception("Деление на ноль");
-                return a / b;
-            case '^': return Math.pow(a, b);
-            default: throw new Exception("Неизвестная операция");
+    // Счетчик выделенной памяти текущего потока (доступен в HotSpot)
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
         }
+        return -1;
     }
 }
 
@@ -246,6 +2655,15 @@ class CalculatorView {
         System.out.println("Ошибка: " + message);
     }
     
+    public void showError(String message, int offset) {
+        showError(formatError(message, offset));
+    }
+    
+    // Сообщение с позицией ошибки в строке, если она известна
+    public static String formatError(String message, int offset) {
+        return offset < 0 ? message : message + " (позиция " + offset + ")";
+    }
+    
     public void close() {
         scanner.close();
     }
@@ -253,6 +2671,9 @@ class CalculatorView {
 
 // Controller - связывает Model и View
 class CalculatorController {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int BATCH_SIZE = 8192;
+    
     private CalculatorModel model;
     private CalculatorView view;
     
@@ -273,11 +2694,85 @@ class CalculatorController {
             try {
                 double result = model.calculate(input);
                 view.showResult(result);
-            } catch (Exception e) {
-                view.showError(e.getMessage());
+            } catch (CalculationException e) {
+                view.showError(e.getMessage(), e.getOffset());
             }
         }
         
         view.close();
     }
+    
+    // Пакетный режим: выражения читаются построчно из файла или stdin, результаты
+    // пишутся в stdout в том же порядке, по одной строке на выражение
+    public void startBatch(String[] options) {
+        boolean parallel = false;
+        String fileName = null;
+        for (String option : options) {
+            if (option.equals("--parallel")) {
+                parallel = true;
+            } else {
+                fileName = option;
+            }
+        }
+        
+        // Стандартные потоки не закрываются: после пакета в них еще пишут сообщения,
+        // поэтому закрывается только файл, а вывод лишь сбрасывается
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        try {
+            if (fileName == null) {
+                processBatch(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), BUFFER_SIZE),
+                    writer, parallel);
+            } else {
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(new FileInputStream(fileName), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+                    processBatch(reader, writer, parallel);
+                }
+            }
+            writer.flush();
+        } catch (IOException e) {
+            view.showError(e.getMessage());
+        }
+    }
+    
+    // Строки обрабатываются порциями: порция считается (при необходимости параллельно),
+    // затем результаты записываются по порядку и буфер сбрасывается один раз на порцию
+    public void processBatch(BufferedReader reader, Writer writer, boolean parallel) throws IOException {
+        String[] lines = new String[BATCH_SIZE];
+        String[] results = new String[BATCH_SIZE];
+        int count;
+        
+        while ((count = readLines(reader, lines)) > 0) {
+            if (parallel) {
+                IntStream.range(0, count).parallel().forEach(i -> results[i] = evaluateLine(lines[i]));
+            } else {
+                for (int i = 0; i < count; i++) {
+                    results[i] = evaluateLine(lines[i]);
+                }
+            }
+            
+            for (int i = 0; i < count; i++) {
+                writer.write(results[i]);
+                writer.write('\n');
+            }
+            writer.flush();
+        }
+    }
+    
+    private int readLines(BufferedReader reader, String[] lines) throws IOException {
+        int count = 0;
+        String line;
+        while (count < lines.length && (line = reader.readLine()) != null) {
+            lines[count++] = line;
+        }
+        return count;
+    }
+    
+    // Ошибки возвращаются кодом, без исключений: в пакете их может быть много
+    private String evaluateLine(String line) {
+        CalculationResult result = model.calculateResultUncached(line);
+        if (result.isSuccess()) {
+            return String.valueOf(result.getValue());
+        }
+        return "Ошибка: " + CalculatorView.formatError(result.getMessage(), result.getOffset());
+    }
 }
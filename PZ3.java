@@ -1,15 +1,64 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 class Main {
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--bench")) {
+            VotingBenchmark.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
         VotingSystem system = new VotingSystem();
-        system.loadData();
+        try {
+            system.loadData();
+        } catch (IOException e) {
+            // Без журнала изменения не сохранялись бы, поэтому работа не начинается
+            System.out.println("Ошибка при загрузке данных: " + e.getMessage());
+            System.out.println("Работа прекращена, данные на диске не изменены.");
+            return;
+        }
         
         Scanner scanner = new Scanner(System.in);
         while (true) {
@@ -37,91 +86,512 @@ class Main {
 }
 
 class VotingSystem {
-    private Map<String, User> users = new HashMap<>();
-    private Map<String, CEC> cecs = new HashMap<>();
-    private Map<String, Candidate> candidates = new HashMap<>();
-    private List<Voting> votings = new ArrayList<>();
+    // Записи журнала: изменения состояния
+    private static final byte REGISTER_USER = 1;
+    private static final byte DELETE_USER = 2;
+    private static final byte CREATE_CEC = 3;
+    private static final byte DELETE_CEC = 4;
+    private static final byte ADD_CANDIDATE = 5;
+    private static final byte DELETE_CANDIDATE = 6;
+    private static final byte UPDATE_CANDIDATE = 7;
+    private static final byte CREATE_VOTING = 8;
+    private static final byte ATTACH_CANDIDATE = 9;
+    private static final byte VOTE = 10;
+    private static final byte UPDATE_PASSWORD = 11;
+    
+    // Записи снимка: полное состояние объектов
+    private static final byte CEC_STATE = 20;
+    private static final byte USER_STATE = 21;
+    private static final byte CANDIDATE_STATE = 22;
+    private static final byte VOTING_STATE = 23;
+    
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+    private static final String USERS_FILE = "users.dir";
+    // Снимок делается в фоне после стольких записей журнала
+    private static final long SNAPSHOT_INTERVAL = 100_000;
+    // Хеш пароля встроенного администратора (admin123)
+    private static final String ADMIN_PASSWORD = "pbkdf2$120000$4oyJuuVqTfvAS/fp/oceuQ$sdhak2BjzMcLqfFuMrKiPebbZZMI/s+uab9elDkEjCE";
+    
+    // Коллекции потокобезопасны: фоновый снимок читает их во время изменений.
+    // Учетные записи всех ролей хранятся в каталоге, отображенном в память;
+    // объекты ЦИК и кандидатов дополнительно хранятся в картах ниже
+    private final UserDirectory users;
+    private Map<String, CEC> cecs = new ConcurrentHashMap<>();
+    private Map<String, Candidate> candidates = new ConcurrentHashMap<>();
+    private List<Voting> votings = new CopyOnWriteArrayList<>();
     private SystemUser currentUser = null;
     
-    public void loadData() {
+    private final Path directory;
+    private VoteJournal journal;
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    // Запись в журнал вместе с применением изменения - под разделяемой блокировкой,
+    // переключение сегмента журнала для снимка - под исключительной
+    private final ReadWriteLock journalLock = new ReentrantReadWriteLock();
+    // Пароли хранятся только в виде хешей; проверки идут в собственном пуле
+    private final PasswordHasher passwords = new PasswordHasher();
+    
+    public VotingSystem() {
+        this(Paths.get(""));
+    }
+    
+    public VotingSystem(Path directory) {
+        this.directory = directory;
+        this.users = new UserDirectory(directory.resolve(USERS_FILE));
+    }
+    
+    // Восстановление: последний снимок, затем повтор журнала начиная с сегмента,
+    // указанного в снимке. Повтор идемпотентен, поэтому записи, уже вошедшие
+    // в снимок, применяются повторно без последствий. При ошибке журнал
+    // не открывается, и продолжать работу нельзя: изменения не сохранялись бы
+    public void loadData() throws IOException {
         try {
-            if (Files.exists(Paths.get("users.dat"))) {
-                ObjectInputStream ois = new ObjectInputStream(new FileInputStream("users.dat"));
-                users = (Map<String, User>) ois.readObject();
-                ois.close();
+            long segment = restore();
+            if (segment < 0) {
+                loadLegacyData();
+                segment = 0;
             }
             
-            if (Files.exists(Paths.get("cecs.dat"))) {
-                ObjectInputStream ois = new ObjectInputStream(new FileInputStream("cecs.dat"));
-                cecs = (Map<String, CEC>) ois.readObject();
-                ois.close();
+            long last = segment;
+            for (long current = segment; Files.exists(VoteJournal.segmentPath(directory, current)); current++) {
+                Path file = VoteJournal.segmentPath(directory, current);
+                long valid = VoteJournal.replay(file, this::apply);
+                if (valid < Files.size(file)) {
+                    // Оборванная при сбое последняя запись отбрасывается
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                        channel.truncate(valid);
+                    }
+                }
+                last = current;
             }
-            
-            if (Files.exists(Paths.get("candidates.dat"))) {
-                ObjectInputStream ois = new ObjectInputStream(new FileInputStream("candidates.dat"));
-                candidates = (Map<String, Candidate>) ois.readObject();
-                ois.close();
+            journal = new VoteJournal(directory, last);
+        } catch (ClassNotFoundException | RuntimeException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+    
+    // Файлы прежнего формата читаются, если снимка еще нет
+    private void loadLegacyData() throws IOException, ClassNotFoundException {
+        if (Files.exists(directory.resolve("users.dat"))) {
+            ObjectInputStream ois = new ObjectInputStream(new FileInputStream(directory.resolve("users.dat").toFile()));
+            for (User user : ((Map<String, User>) ois.readObject()).values()) {
+                users.put(toEntry(user));
             }
-            
-            if (Files.exists(Paths.get("votings.dat"))) {
-                ObjectInputStream ois = new ObjectInputStream(new FileInputStream("votings.dat"));
-                votings = (List<Voting>) ois.readObject();
-                ois.close();
+            ois.close();
+        }
+        
+        if (Files.exists(directory.resolve("cecs.dat"))) {
+            ObjectInputStream ois = new ObjectInputStream(new FileInputStream(directory.resolve("cecs.dat").toFile()));
+            for (CEC cec : ((Map<String, CEC>) ois.readObject()).values()) {
+                cecs.put(cec.getLogin(), cec);
+                users.put(toEntry(cec));
             }
-        } catch (Exception e) {
-            System.out.println("Ошибка при загрузке данных: " + e.getMessage());
+            ois.close();
+        }
+        
+        if (Files.exists(directory.resolve("candidates.dat"))) {
+            ObjectInputStream ois = new ObjectInputStream(new FileInputStream(directory.resolve("candidates.dat").toFile()));
+            for (Candidate candidate : ((Map<String, Candidate>) ois.readObject()).values()) {
+                candidates.put(candidate.getLogin(), candidate);
+                users.put(toEntry(candidate));
+            }
+            ois.close();
+        }
+        
+        if (Files.exists(directory.resolve("votings.dat"))) {
+            ObjectInputStream ois = new ObjectInputStream(new FileInputStream(directory.resolve("votings.dat").toFile()));
+            votings.addAll((List<Voting>) ois.readObject());
+            ois.close();
         }
     }
     
+    // Изменения уже записаны в журнал; при выходе делается снимок, чтобы
+    // следующий запуск не повторял весь журнал
     public void saveData() {
+        if (journal == null) {
+            return;
+        }
         try {
-            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("users.dat"));
-            oos.writeObject(users);
-            oos.close();
-            
-            oos = new ObjectOutputStream(new FileOutputStream("cecs.dat"));
-            oos.writeObject(cecs);
-            oos.close();
-            
-            oos = new ObjectOutputStream(new FileOutputStream("candidates.dat"));
-            oos.writeObject(candidates);
-            oos.close();
-            
-            oos = new ObjectOutputStream(new FileOutputStream("votings.dat"));
-            oos.writeObject(votings);
-            oos.close();
+            snapshot();
+            journal.close();
         } catch (Exception e) {
             System.out.println("Ошибка при сохранении данных: " + e.getMessage());
         }
     }
     
+    // Снимок: журнал переключается на новый сегмент, после чего записывается
+    // состояние. Переключение ждет изменений, уже записанных в журнал, но еще
+    // не примененных, поэтому все записи старых сегментов отражены в состоянии,
+    // и старые сегменты можно удалить
+    public synchronized void snapshot() throws IOException {
+        long segment;
+        journalLock.writeLock().lock();
+        try {
+            segment = journal.rotate();
+        } finally {
+            journalLock.writeLock().unlock();
+        }
+        checkpoint(segment);
+        for (long old = segment - 1; old >= 0 && Files.deleteIfExists(VoteJournal.segmentPath(directory, old)); old--) {
+            // удаляются сегменты, вошедшие в снимок
+        }
+    }
+    
+    // Сначала переписывается каталог учетных записей, затем остальное состояние.
+    // При сбое между ними новый каталог дополняется повтором журнала от прежнего
+    // снимка, что безопасно благодаря идемпотентности повтора
+    synchronized void checkpoint(long segment) throws IOException {
+        users.rewrite();
+        writeSnapshot(directory.resolve(SNAPSHOT_FILE), segment);
+    }
+    
+    // Открывает каталог учетных записей и читает снимок; возвращает номер сегмента
+    // журнала, с которого продолжается восстановление, или -1, если снимка нет
+    long restore() throws IOException {
+        users.load();
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        return Files.exists(snapshot) ? readSnapshot(snapshot) : -1;
+    }
+    
+    // Снимок пишется во временный файл, который атомарно заменяет прежний
+    private void writeSnapshot(Path target, long segment) throws IOException {
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            SnapshotFormat.Writer out = new SnapshotFormat.Writer(channel, segment);
+            for (CEC cec : cecs.values()) {
+                out.startRecord(CEC_STATE);
+                out.writeString(cec.getLogin());
+                out.writeString(cec.getPassword());
+            }
+            for (Candidate candidate : candidates.values()) {
+                out.startRecord(CANDIDATE_STATE);
+                out.writeString(candidate.getLogin());
+                out.writeString(candidate.getPassword());
+                out.writeString(candidate.getFullName());
+                out.writeString(candidate.getParty());
+                out.writeString(candidate.getBio());
+                out.writeStrings(candidate.getParticipatedIn());
+            }
+            // Голоса хранятся итогами по кандидатам отдельно от списка проголосовавших
+            for (Voting voting : votings) {
+                out.startRecord(VOTING_STATE);
+                out.writeString(voting.getId());
+                out.writeString(voting.getTitle());
+                out.writeLong(voting.getStartDate().getTime());
+                out.writeLong(voting.getEndDate().getTime());
+                Map<String, Long> votes = new LinkedHashMap<>();
+                List<String> voterIds = new ArrayList<>();
+                voting.captureState(votes, voterIds);
+                out.writeInt(votes.size());
+                for (Map.Entry<String, Long> entry : votes.entrySet()) {
+                    out.writeString(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+                out.writeStrings(voterIds);
+            }
+            out.finish();
+            channel.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    // Возвращает номер сегмента журнала, с которого продолжается восстановление
+    private long readSnapshot(Path snapshot) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            SnapshotFormat.Reader in = new SnapshotFormat.Reader(channel);
+            in.read(this::applySnapshot);
+            return in.getSegment();
+        }
+    }
+    
+    private void applySnapshot(byte kind, SnapshotFormat.Reader in) throws IOException {
+        switch (kind) {
+            case CEC_STATE: {
+                CEC cec = new CEC(in.readString(), in.readString());
+                cecs.put(cec.getLogin(), cec);
+                users.put(toEntry(cec));
+                break;
+            }
+            case CANDIDATE_STATE: {
+                Candidate candidate = new Candidate(in.readString(), in.readString(), in.readString());
+                candidate.setParty(in.readString());
+                candidate.setBio(in.readString());
+                candidate.getParticipatedIn().addAll(in.readStrings());
+                candidates.put(candidate.getLogin(), candidate);
+                users.put(toEntry(candidate));
+                break;
+            }
+            case USER_STATE: {
+                // Снимки, сделанные до появления каталога, содержат пользователей
+                User user = new User(in.readString(), in.readString(), in.readString(),
+                    in.readString(), in.readString(), in.readString());
+                user.getVotedIn().addAll(in.readStrings());
+                users.put(toEntry(user));
+                break;
+            }
+            case VOTING_STATE: {
+                Voting voting = new Voting(in.readString(), in.readString(),
+                    new Date(in.readLong()), new Date(in.readLong()));
+                for (int i = in.readInt(); i > 0; i--) {
+                    String candidateId = in.readString();
+                    voting.addCandidate(candidateId);
+                    voting.restoreVotes(candidateId, in.readLong());
+                }
+                voting.restoreVoters(in.readStrings());
+                votings.add(voting);
+                break;
+            }
+            default:
+                throw new IOException("Неизвестный тип записи снимка: " + kind);
+        }
+    }
+    
+    // Применение записи журнала к состоянию
+    private void apply(byte type, DataInputStream in) throws IOException {
+        switch (type) {
+            case REGISTER_USER: {
+                User user = new User(VoteJournal.readString(in), VoteJournal.readString(in), VoteJournal.readString(in),
+                    VoteJournal.readString(in), VoteJournal.readString(in), VoteJournal.readString(in));
+                users.put(toEntry(user));
+                break;
+            }
+            case DELETE_USER:
+                users.remove(VoteJournal.readString(in));
+                break;
+            case CREATE_CEC: {
+                CEC cec = new CEC(VoteJournal.readString(in), VoteJournal.readString(in));
+                cecs.put(cec.getLogin(), cec);
+                users.put(toEntry(cec));
+                break;
+            }
+            case DELETE_CEC: {
+                String login = VoteJournal.readString(in);
+                cecs.remove(login);
+                users.remove(login);
+                break;
+            }
+            case ADD_CANDIDATE: {
+                Candidate candidate = new Candidate(VoteJournal.readString(in), VoteJournal.readString(in),
+                    VoteJournal.readString(in));
+                candidates.put(candidate.getLogin(), candidate);
+                users.put(toEntry(candidate));
+                break;
+            }
+            case UPDATE_PASSWORD:
+                changePassword(VoteJournal.readString(in), VoteJournal.readString(in));
+                break;
+            case DELETE_CANDIDATE: {
+                String login = VoteJournal.readString(in);
+                invalidateResults(candidates.remove(login));
+                users.remove(login);
+                break;
+            }
+            case UPDATE_CANDIDATE: {
+                Candidate candidate = candidates.get(VoteJournal.readString(in));
+                String party = VoteJournal.readString(in);
+                String bio = VoteJournal.readString(in);
+                if (candidate != null) {
+                    candidate.setParty(party);
+                    candidate.setBio(bio);
+                    invalidateResults(candidate);
+                }
+                break;
+            }
+            case CREATE_VOTING: {
+                String id = VoteJournal.readString(in);
+                String title = VoteJournal.readString(in);
+                Date startDate = new Date(in.readLong());
+                Date endDate = new Date(in.readLong());
+                if (findVoting(id) == null) {
+                    votings.add(new Voting(id, title, startDate, endDate));
+                }
+                break;
+            }
+            case ATTACH_CANDIDATE: {
+                Voting voting = findVoting(VoteJournal.readString(in));
+                String login = VoteJournal.readString(in);
+                Candidate candidate = candidates.get(login);
+                if (voting != null && voting.addCandidate(login) && candidate != null) {
+                    candidate.getParticipatedIn().add(voting.getId());
+                }
+                break;
+            }
+            case VOTE: {
+                Voting voting = findVoting(VoteJournal.readString(in));
+                String voterId = VoteJournal.readString(in);
+                String candidateId = VoteJournal.readString(in);
+                String login = VoteJournal.readString(in);
+                // Повторная запись о том же избирателе отклоняется самим голосованием
+                if (voting != null && voting.castVote(voterId, candidateId) == VoteStatus.ACCEPTED) {
+                    markVoted(login, voting.getId());
+                }
+                break;
+            }
+            default:
+                throw new IOException("Неизвестный тип записи журнала: " + type);
+        }
+    }
+    
+    // Запись изменения в журнал с ожиданием сброса на диск, затем применение
+    // к состоянию. Изменение становится видно только после записи, поэтому при
+    // ошибке в памяти ничего не меняется и снимок не сохранит незаписанное.
+    // Журнала нет только у системы без loadData (в замерах): она живет в памяти
+    private boolean commit(byte type, VoteJournal.RecordWriter writer, Runnable change) {
+        if (journal == null) {
+            change.run();
+            return true;
+        }
+        journalLock.readLock().lock();
+        try {
+            try {
+                journal.append(VoteJournal.encode(type, writer)).join();
+            } catch (IOException | CompletionException e) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                System.out.println("Ошибка при сохранении данных: " + cause.getMessage());
+                return false;
+            }
+            change.run();
+        } finally {
+            journalLock.readLock().unlock();
+        }
+        if (journal.getPendingRecords() >= SNAPSHOT_INTERVAL && snapshotting.compareAndSet(false, true)) {
+            Thread snapshotter = new Thread(() -> {
+                try {
+                    snapshot();
+                } catch (IOException e) {
+                    System.out.println("Ошибка при сохранении снимка: " + e.getMessage());
+                } finally {
+                    snapshotting.set(false);
+                }
+            }, "voting-snapshot");
+            snapshotter.setDaemon(true);
+            snapshotter.start();
+        }
+        return true;
+    }
+    
+    private UserDirectory.Entry toEntry(SystemUser account) {
+        if (account instanceof User) {
+            User user = (User) account;
+            return new UserDirectory.Entry(UserDirectory.USER, user.getLogin(), user.getPassword(),
+                new String[] { user.getFullName(), user.getBirthDate(), user.getSnils(), user.getUniqueId() },
+                new ArrayList<>(user.getVotedIn()));
+        }
+        byte role = account instanceof CEC ? UserDirectory.CEC : UserDirectory.CANDIDATE;
+        return new UserDirectory.Entry(role, account.getLogin(), account.getPassword(), new String[0],
+            Collections.emptyList());
+    }
+    
+    private User toUser(UserDirectory.Entry entry) {
+        User user = new User(entry.login, entry.password, entry.fields[0], entry.fields[1], entry.fields[2],
+            entry.fields[3]);
+        user.getVotedIn().addAll(entry.list);
+        return user;
+    }
+    
+    // Объект пользователя создается из записи каталога при каждом обращении
+    User getUser(String login) {
+        UserDirectory.Entry entry = users.get(login);
+        return entry != null && entry.role == UserDirectory.USER ? toUser(entry) : null;
+    }
+    
+    private void markVoted(String login, String votingId) {
+        users.update(login, entry -> {
+            if (entry == null || entry.role != UserDirectory.USER || entry.list.contains(votingId)) {
+                return null;
+            }
+            List<String> votedIn = new ArrayList<>(entry.list);
+            votedIn.add(votingId);
+            return new UserDirectory.Entry(entry.role, entry.login, entry.password, entry.fields, votedIn);
+        });
+    }
+    
+    Voting findVoting(String id) {
+        for (Voting voting : votings) {
+            if (voting.getId().equals(id)) {
+                return voting;
+            }
+        }
+        return null;
+    }
+    
     public void login(Scanner scanner) {
         System.out.print("Введите логин: ");
         String login = scanner.nextLine();
         System.out.print("Введите пароль: ");
         String password = scanner.nextLine();
         
-        if ("admin".equals(login)) {
-            if ("admin123".equals(password)) {
-                showAdminMenu(scanner);
-                return;
-            }
+        boolean admin;
+        byte role;
+        try {
+            admin = "admin".equals(login) && passwords.verify(login, password, ADMIN_PASSWORD).join();
+            role = admin ? 0 : authenticate(login, password);
+        } catch (CompletionException e) {
+            System.out.println(e.getCause() instanceof RejectedExecutionException
+                ? "Сервер перегружен, повторите вход позже." : "Ошибка проверки пароля: " + e.getCause().getMessage());
+            return;
+        }
+        if (admin) {
+            showAdminMenu(scanner);
+            return;
         }
         
-        if (users.containsKey(login) && users.get(login).getPassword().equals(password)) {
-            currentUser = users.get(login);
+        if (role == UserDirectory.USER && (currentUser = getUser(login)) != null) {
             showUserMenu(scanner);
-        } else if (cecs.containsKey(login) && cecs.get(login).getPassword().equals(password)) {
-            currentUser = cecs.get(login);
+        } else if (role == UserDirectory.CEC && (currentUser = cecs.get(login)) != null) {
             showCECMenu(scanner);
-        } else if (candidates.containsKey(login) && candidates.get(login).getPassword().equals(password)) {
-            currentUser = candidates.get(login);
+        } else if (role == UserDirectory.CANDIDATE && (currentUser = candidates.get(login)) != null) {
             showCandidateMenu(scanner);
         } else {
             System.out.println("Неверный логин или пароль!");
         }
     }
     
+    // Роль и сохраненный хеш читаются одним обращением к каталогу, сама проверка
+    // идет в пуле проверок. Пароль старого формата после успешного входа
+    // заменяется хешем
+    private byte authenticate(String login, String password) {
+        UserDirectory.Credentials credentials = users.getCredentials(login);
+        if (credentials == null || !passwords.verify(login, password, credentials.password).join()) {
+            return 0;
+        }
+        if (PasswordHasher.needsRehash(credentials.password)) {
+            String hash = passwords.hash(password).join();
+            if (!commit(UPDATE_PASSWORD, data -> {
+                VoteJournal.writeString(data, login);
+                VoteJournal.writeString(data, hash);
+            }, () -> changePassword(login, hash))) {
+                // Вход уже подтвержден прежним паролем; он и остается, замена повторится при следующем входе
+                System.out.println("Пароль не заменен хешем.");
+            }
+        }
+        return credentials.role;
+    }
+    
+    private void changePassword(String login, String hash) {
+        users.update(login, entry -> entry == null ? null
+            : new UserDirectory.Entry(entry.role, entry.login, hash, entry.fields, entry.list));
+        CEC cec = cecs.get(login);
+        if (cec != null) {
+            cec.setPassword(hash);
+        }
+        Candidate candidate = candidates.get(login);
+        if (candidate != null) {
+            candidate.setPassword(hash);
+        }
+    }
+    
+    // Хеш нового пароля; null и сообщение, если пул проверок перегружен или хеш не вычислен
+    private String hashPassword(String password) {
+        try {
+            return passwords.hash(password).join();
+        } catch (CompletionException e) {
+            System.out.println(e.getCause() instanceof RejectedExecutionException
+                ? "Сервер перегружен, повторите попытку позже." : "Ошибка вычисления хеша: " + e.getCause().getMessage());
+            return null;
+        }
+    }
+    
     public void registerUser(Scanner scanner) {
         System.out.println("\n=== Регистрация нового пользователя ===");
         System.out.print("Введите ФИО: ");
@@ -135,15 +605,30 @@ class VotingSystem {
         System.out.print("Придумайте пароль: ");
         String password = scanner.nextLine();
         
-        if (users.containsKey(login) || cecs.containsKey(login) || candidates.containsKey(login)) {
+        if (users.roleOf(login) != 0) {
             System.out.println("Пользователь с таким логином уже существует!");
             return;
         }
         
+        String hash = hashPassword(password);
+        if (hash == null) {
+            return;
+        }
         String uniqueId = generateUniqueId(fullName, birthDate, snils);
-        User newUser = new User(login, password, fullName, birthDate, snils, uniqueId);
-        users.put(login, newUser);
-        System.out.println("Регистрация прошла успешно!");
+        if (register(new User(login, hash, fullName, birthDate, snils, uniqueId))) {
+            System.out.println("Регистрация прошла успешно!");
+        }
+    }
+    
+    boolean register(User user) {
+        return commit(REGISTER_USER, data -> {
+            VoteJournal.writeString(data, user.getLogin());
+            VoteJournal.writeString(data, user.getPassword());
+            VoteJournal.writeString(data, user.getFullName());
+            VoteJournal.writeString(data, user.getBirthDate());
+            VoteJournal.writeString(data, user.getSnils());
+            VoteJournal.writeString(data, user.getUniqueId());
+        }, () -> users.put(toEntry(user)));
     }
     
     private String generateUniqueId(String fullName, String birthDate, String snils) {
@@ -299,15 +784,22 @@ class VotingSystem {
     // Реализация недостающих методов
     private void viewUsers() {
         System.out.println("\n=== Список пользователей ===");
-        users.values().forEach(user -> System.out.println(user.getLogin() + ": " + user.getFullName()));
+        users.forEach(entry -> {
+            if (entry.role == UserDirectory.USER) {
+                System.out.println(entry.login + ": " + entry.fields[0]);
+            }
+        });
     }
     
     private void deleteUser(Scanner scanner) {
         System.out.print("Введите логин пользователя для удаления: ");
         String login = scanner.nextLine();
-        if (users.containsKey(login)) {
-            users.remove(login);
-            System.out.println("Пользователь удален.");
+        if (users.roleOf(login) == UserDirectory.USER) {
+            if (commit(DELETE_USER, data -> VoteJournal.writeString(data, login), () -> users.remove(login))) {
+                System.out.println("Пользователь удален.");
+            } else {
+                System.out.println("Пользователь не удален.");
+            }
         } else {
             System.out.println("Пользователь не найден!");
         }
@@ -322,8 +814,14 @@ class VotingSystem {
         System.out.print("Введите логин ЦИК для удаления: ");
         String login = scanner.nextLine();
         if (cecs.containsKey(login)) {
-            cecs.remove(login);
-            System.out.println("ЦИК удален.");
+            if (commit(DELETE_CEC, data -> VoteJournal.writeString(data, login), () -> {
+                cecs.remove(login);
+                users.remove(login);
+            })) {
+                System.out.println("ЦИК удален.");
+            } else {
+                System.out.println("ЦИК не удален.");
+            }
         } else {
             System.out.println("ЦИК не найден!");
         }
@@ -335,13 +833,25 @@ class VotingSystem {
         System.out.print("Введите пароль: ");
         String password = scanner.nextLine();
         
-        if (cecs.containsKey(login)) {
+        if (users.roleOf(login) != 0) {
             System.out.println("ЦИК с таким логином уже существует!");
             return;
         }
         
-        cecs.put(login, new CEC(login, password));
-        System.out.println("ЦИК создан.");
+        String hash = hashPassword(password);
+        if (hash == null) {
+            return;
+        }
+        CEC cec = new CEC(login, hash);
+        if (commit(CREATE_CEC, data -> {
+            VoteJournal.writeString(data, login);
+            VoteJournal.writeString(data, hash);
+        }, () -> {
+            cecs.put(login, cec);
+            users.put(toEntry(cec));
+        })) {
+            System.out.println("ЦИК создан.");
+        }
     }
     
     private void viewCandidates() {
@@ -354,8 +864,14 @@ class VotingSystem {
         System.out.print("Введите логин кандидата для удаления: ");
         String login = scanner.nextLine();
         if (candidates.containsKey(login)) {
-            candidates.remove(login);
-            System.out.println("Кандидат удален.");
+            if (commit(DELETE_CANDIDATE, data -> VoteJournal.writeString(data, login), () -> {
+                invalidateResults(candidates.remove(login));
+                users.remove(login);
+            })) {
+                System.out.println("Кандидат удален.");
+            } else {
+                System.out.println("Кандидат не удален.");
+            }
         } else {
             System.out.println("Кандидат не найден!");
         }
@@ -370,14 +886,23 @@ class VotingSystem {
         try {
             SimpleDateFormat sdf = new SimpleDateFormat("dd.MM.yyyy");
             Date endDate = sdf.parse(endDateStr);
-            Voting voting = new Voting(title, endDate);
-            votings.add(voting);
-            System.out.println("Голосование создано.");
-        } catch (Exception e) {
+            if (addVoting(new Voting(title, endDate))) {
+                System.out.println("Голосование создано.");
+            }
+        } catch (java.text.ParseException e) {
             System.out.println("Неверный формат даты!");
         }
     }
     
+    boolean addVoting(Voting voting) {
+        return commit(CREATE_VOTING, data -> {
+            VoteJournal.writeString(data, voting.getId());
+            VoteJournal.writeString(data, voting.getTitle());
+            data.writeLong(voting.getStartDate().getTime());
+            data.writeLong(voting.getEndDate().getTime());
+        }, () -> votings.add(voting));
+    }
+    
     private void addCandidate(Scanner scanner) {
         System.out.print("Введите логин кандидата: ");
         String login = scanner.nextLine();
@@ -386,46 +911,276 @@ class VotingSystem {
         System.out.print("Введите ФИО кандидата: ");
         String fullName = scanner.nextLine();
         
-        if (candidates.containsKey(login)) {
+        if (users.roleOf(login) != 0) {
             System.out.println("Кандидат с таким логином уже существует!");
             return;
         }
         
-        candidates.put(login, new Candidate(login, password, fullName));
+        String hash = hashPassword(password);
+        if (hash == null) {
+            return;
+        }
+        Candidate candidate = new Candidate(login, hash, fullName);
+        if (!commit(ADD_CANDIDATE, data -> {
+            VoteJournal.writeString(data, login);
+            VoteJournal.writeString(data, hash);
+            VoteJournal.writeString(data, fullName);
+        }, () -> {
+            candidates.put(login, candidate);
+            users.put(toEntry(candidate));
+        })) {
+            return;
+        }
         System.out.println("Кандидат добавлен.");
+        
+        List<Voting> active = getActiveVotings();
+        if (active.isEmpty()) {
+            return;
+        }
+        System.out.println("Добавить кандидата в голосование?");
+        Voting voting = chooseVoting(scanner, active);
+        if (voting != null && !voting.getCandidateIds().contains(login) && commit(ATTACH_CANDIDATE, data -> {
+            VoteJournal.writeString(data, voting.getId());
+            VoteJournal.writeString(data, login);
+        }, () -> {
+            if (voting.addCandidate(login)) {
+                candidate.getParticipatedIn().add(voting.getId());
+            }
+        })) {
+            System.out.println("Кандидат добавлен в голосование \"" + voting.getTitle() + "\".");
+        }
+    }
+    
+    // Голосования, срок которых еще не истек
+    List<Voting> getActiveVotings() {
+        Date now = new Date();
+        return votings.stream()
+            .filter(voting -> voting.getEndDate().after(now))
+            .collect(Collectors.toList());
+    }
+    
+    // Выбор голосования по номеру; 0 или неверный ввод - отказ от выбора
+    private Voting chooseVoting(Scanner scanner, List<Voting> list) {
+        for (int i = 0; i < list.size(); i++) {
+            System.out.println((i + 1) + ". " + list.get(i).getTitle() + " (до " + list.get(i).getEndDate() + ")");
+        }
+        System.out.print("Введите номер голосования (0 - отмена): ");
+        int index = readIndex(scanner, list.size());
+        return index < 0 ? null : list.get(index);
+    }
+    
+    private int readIndex(Scanner scanner, int size) {
+        try {
+            int number = Integer.parseInt(scanner.nextLine().trim());
+            if (number >= 1 && number <= size) {
+                return number - 1;
+            }
+        } catch (NumberFormatException e) {
+            // неверный ввод считается отказом
+        }
+        return -1;
     }
     
     private void viewGroupedResults(Scanner scanner) {
         System.out.println("\n=== Результаты с группировкой ===");
-        // Здесь должна быть логика группировки результатов
+        Voting voting = chooseAnyVoting(scanner);
+        if (voting == null) {
+            return;
+        }
+        VotingResults results = getResults(voting);
+        long total = results.getTotal();
+        System.out.println(voting.getTitle() + ", всего голосов: " + total);
+        Map<String, List<Map.Entry<String, Long>>> byParty = results.getByParty();
+        results.getPartyTotals().forEach((party, count) -> {
+            System.out.println(party + ": " + formatVotes(count, total));
+            for (Map.Entry<String, Long> entry : byParty.get(party)) {
+                System.out.println("    " + getCandidateName(entry.getKey()) + ": " + formatVotes(entry.getValue(), total));
+            }
+        });
     }
     
     private void viewSortedResults(Scanner scanner) {
         System.out.println("\n=== Результаты с сортировкой ===");
-        // Здесь должна быть логика сортировки результатов
+        Voting voting = chooseAnyVoting(scanner);
+        if (voting == null) {
+            return;
+        }
+        System.out.print("Сколько первых мест показать (0 - все): ");
+        int limit;
+        try {
+            limit = Integer.parseInt(scanner.nextLine().trim());
+        } catch (NumberFormatException e) {
+            limit = 0;
+        }
+        // Места берутся из живого рейтинга: пересчитываются только кандидаты,
+        // получившие голоса с прошлого просмотра
+        Leaderboard leaderboard = voting.getLeaderboard();
+        List<Map.Entry<String, Long>> places = leaderboard.getTop(limit > 0 ? limit : Integer.MAX_VALUE);
+        long total = leaderboard.getTotal();
+        System.out.println(voting.getTitle() + ", всего голосов: " + total);
+        for (int i = 0; i < places.size(); i++) {
+            String candidateId = places.get(i).getKey();
+            System.out.println((i + 1) + ". " + getCandidateName(candidateId) + " (" + partyOf(candidateId) + "): "
+                + formatVotes(places.get(i).getValue(), total));
+        }
+    }
+    
+    // Итоги голосования из кэша; пересчитываются только после новых голосов
+    VotingResults getResults(Voting voting) {
+        return voting.getResults(this::partyOf);
+    }
+    
+    // Партия кандидата для группировки итогов
+    private String partyOf(String candidateId) {
+        Candidate candidate = candidates.get(candidateId);
+        String party = candidate != null ? candidate.getParty() : null;
+        return party == null || party.isBlank() ? VotingResults.NO_PARTY : party;
+    }
+    
+    private String getCandidateName(String candidateId) {
+        Candidate candidate = candidates.get(candidateId);
+        return candidate != null ? candidate.getFullName() : candidateId;
+    }
+    
+    private String formatVotes(long count, long total) {
+        double share = total == 0 ? 0 : count * 100.0 / total;
+        return count + " (" + String.format("%.1f", share) + "%)";
+    }
+    
+    // Смена партии или удаление кандидата меняет группировку во всех его голосованиях
+    private void invalidateResults(Candidate candidate) {
+        if (candidate == null) {
+            return;
+        }
+        for (String votingId : candidate.getParticipatedIn()) {
+            Voting voting = findVoting(votingId);
+            if (voting != null) {
+                voting.invalidateResults();
+            }
+        }
+    }
+    
+    private Voting chooseAnyVoting(Scanner scanner) {
+        if (votings.isEmpty()) {
+            System.out.println("Нет голосований.");
+            return null;
+        }
+        return chooseVoting(scanner, new ArrayList<>(votings));
     }
     
     private void fillCandidateData(Scanner scanner, Candidate candidate) {
         System.out.print("Введите партию: ");
-        candidate.setParty(scanner.nextLine());
+        String party = scanner.nextLine();
         System.out.print("Введите биографию: ");
-        candidate.setBio(scanner.nextLine());
-        System.out.println("Данные обновлены.");
+        String bio = scanner.nextLine();
+        if (commit(UPDATE_CANDIDATE, data -> {
+            VoteJournal.writeString(data, candidate.getLogin());
+            VoteJournal.writeString(data, party);
+            VoteJournal.writeString(data, bio);
+        }, () -> {
+            candidate.setParty(party);
+            candidate.setBio(bio);
+            invalidateResults(candidate);
+        })) {
+            System.out.println("Данные обновлены.");
+        }
     }
     
     private void viewPreviousVotingResults(Candidate candidate) {
         System.out.println("\n=== Результаты предыдущего голосования ===");
-        // Здесь должна быть логика вывода результатов
+        // Предыдущее - последнее из завершившихся голосований кандидата
+        Date now = new Date();
+        Voting previous = null;
+        for (String votingId : candidate.getParticipatedIn()) {
+            Voting voting = findVoting(votingId);
+            if (voting != null && !voting.getEndDate().after(now)
+                    && (previous == null || voting.getEndDate().after(previous.getEndDate()))) {
+                previous = voting;
+            }
+        }
+        if (previous == null) {
+            System.out.println("Нет завершенных голосований.");
+            return;
+        }
+        printCandidateResult(previous, candidate);
     }
     
     private void viewAllParticipatedVotings(Candidate candidate) {
         System.out.println("\n=== Все голосования с участием ===");
-        // Здесь должна быть логика вывода голосований
+        if (candidate.getParticipatedIn().isEmpty()) {
+            System.out.println("Кандидат не участвует в голосованиях.");
+            return;
+        }
+        for (String votingId : candidate.getParticipatedIn()) {
+            Voting voting = findVoting(votingId);
+            if (voting != null) {
+                printCandidateResult(voting, candidate);
+            }
+        }
+    }
+    
+    private void printCandidateResult(Voting voting, Candidate candidate) {
+        Leaderboard leaderboard = voting.getLeaderboard();
+        int rank = voting.getRank(candidate.getLogin());
+        long total = leaderboard.getTotal();
+        String status = voting.getEndDate().after(new Date()) ? "идет" : "завершено";
+        System.out.println(voting.getTitle() + " (до " + voting.getEndDate() + ", " + status + ")");
+        long count = voting.getVotes().getOrDefault(candidate.getLogin(), 0L);
+        System.out.println("    Голосов: " + formatVotes(count, total)
+            + ", место: " + rank + " из " + leaderboard.size());
     }
     
     private void vote(Scanner scanner, User user) {
         System.out.println("\n=== Голосование ===");
-        // Здесь должна быть логика голосования
+        List<Voting> active = getActiveVotings();
+        if (active.isEmpty()) {
+            System.out.println("Нет активных голосований.");
+            return;
+        }
+        Voting voting = chooseVoting(scanner, active);
+        if (voting == null) {
+            return;
+        }
+        if (voting.hasVoted(user.getUniqueId())) {
+            System.out.println(VoteStatus.ALREADY_VOTED.getMessage() + "!");
+            return;
+        }
+        
+        List<String> candidateIds = voting.getCandidateIds();
+        if (candidateIds.isEmpty()) {
+            System.out.println("В голосовании нет кандидатов.");
+            return;
+        }
+        for (int i = 0; i < candidateIds.size(); i++) {
+            Candidate candidate = candidates.get(candidateIds.get(i));
+            String name = candidate != null ? candidate.getFullName() : candidateIds.get(i);
+            System.out.println((i + 1) + ". " + name);
+        }
+        System.out.print("Введите номер кандидата (0 - отмена): ");
+        int index = readIndex(scanner, candidateIds.size());
+        if (index < 0) {
+            return;
+        }
+        
+        VoteStatus status = submitVote(voting, user.getUniqueId(), user.getLogin(), candidateIds.get(index));
+        if (status == VoteStatus.ACCEPTED) {
+            user.getVotedIn().add(voting.getId());
+        }
+        System.out.println(status.getMessage() + (status == VoteStatus.ACCEPTED ? "." : "!"));
+    }
+    
+    // Повторная проверка выполняется внутри castVote; голос учитывается только
+    // после записи в журнал, а если запись не удалась, избиратель может попробовать снова
+    VoteStatus submitVote(Voting voting, String voterId, String login, String candidateId) {
+        return voting.castVote(voterId, candidateId, count -> commit(VOTE, data -> {
+            VoteJournal.writeString(data, voting.getId());
+            VoteJournal.writeString(data, voterId);
+            VoteJournal.writeString(data, candidateId);
+            VoteJournal.writeString(data, login);
+        }, () -> {
+            count.run();
+            markVoted(login, voting.getId());
+        }));
     }
     
     private void viewCandidatesList() {
@@ -450,7 +1205,9 @@ class VotingSystem {
         }
         
         public String getLogin() { return login; }
+        // Пароль хранится в виде хеша PasswordHasher
         public String getPassword() { return password; }
+        void setPassword(String password) { this.password = password; }
     }
     
     class User extends SystemUser {
@@ -458,7 +1215,8 @@ class VotingSystem {
         private String birthDate;
         private String snils;
         private String uniqueId;
-        private List<String> votedIn = new ArrayList<>();
+        // Пользователь участвует в немногих голосованиях, поэтому таблица маленькая
+        private Set<String> votedIn = ConcurrentHashMap.newKeySet(2);
         
         public User(String login, String password, String fullName, String birthDate, String snils, String uniqueId) {
             super(login, password);
@@ -472,7 +1230,7 @@ class VotingSystem {
         public String getBirthDate() { return birthDate; }
         public String getSnils() { return snils; }
         public String getUniqueId() { return uniqueId; }
-        public List<String> getVotedIn() { return votedIn; }
+        public Set<String> getVotedIn() { return votedIn; }
     }
     
     class CEC extends SystemUser {
@@ -485,7 +1243,7 @@ class VotingSystem {
         private String fullName;
         private String party;
         private String bio;
-        private List<String> participatedIn = new ArrayList<>();
+        private List<String> participatedIn = new CopyOnWriteArrayList<>();
         
         public Candidate(String login, String password, String fullName) {
             super(login, password);
@@ -507,13 +1265,31 @@ class VotingSystem {
         private Date startDate;
         private Date endDate;
         private List<String> candidateIds = new ArrayList<>();
-        private Map<String, Integer> votes = new HashMap<>();
-        private List<String> voterIds = new ArrayList<>();
+        // Счетчик на каждого кандидата: LongAdder распределяет инкременты по ячейкам,
+        // поэтому одновременные голоса за одного кандидата не конкурируют за одно поле.
+        // Счетчики принадлежат рейтингу, который поддерживает порядок кандидатов
+        private final Leaderboard leaderboard = new Leaderboard();
+        private Map<String, Leaderboard.Standing> votes = new ConcurrentHashMap<>();
+        // Идентификаторы проголосовавших: проверка и добавление за O(1) без общей блокировки
+        private Set<String> voterIds = ConcurrentHashMap.newKeySet();
+        // Голоса идут под разделяемой блокировкой, снимок читает состояние под исключительной
+        private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+        // Попытки голосования, ожидающие записи в журнал: следующая попытка того же
+        // избирателя ждет исхода предыдущей, а не получает отказ, пока он неизвестен
+        private final Map<String, CompletableFuture<Void>> pendingVotes = new ConcurrentHashMap<>();
+        // Кэш итогов и признак его актуальности; сбрасывается голосом, новым кандидатом
+        // и изменением данных кандидата
+        private transient volatile VotingResults results;
+        private transient volatile boolean resultsValid;
         
         public Voting(String title, Date endDate) {
-            this.id = UUID.randomUUID().toString();
+            this(UUID.randomUUID().toString(), title, new Date(), endDate);
+        }
+        
+        public Voting(String id, String title, Date startDate, Date endDate) {
+            this.id = id;
             this.title = title;
-            this.startDate = new Date();
+            this.startDate = startDate;
             this.endDate = endDate;
         }
         
@@ -521,8 +1297,2099 @@ class VotingSystem {
         public String getTitle() { return title; }
         public Date getStartDate() { return startDate; }
         public Date getEndDate() { return endDate; }
-        public List<String> getCandidateIds() { return candidateIds; }
-        public Map<String, Integer> getVotes() { return votes; }
-        public List<String> getVoterIds() { return voterIds; }
+        public synchronized List<String> getCandidateIds() { return new ArrayList<>(candidateIds); }
+        public Set<String> getVoterIds() { return Collections.unmodifiableSet(voterIds); }
+        public boolean hasVoted(String voterId) { return voterIds.contains(voterId); }
+        
+        // Кандидаты добавляются редко, поэтому здесь достаточно блокировки
+        public synchronized boolean addCandidate(String candidateId) {
+            if (votes.containsKey(candidateId)) {
+                return false;
+            }
+            votes.put(candidateId, leaderboard.add(candidateId));
+            candidateIds.add(candidateId);
+            invalidateResults();
+            return true;
+        }
+        
+        // Учет голоса без записи в журнал: повтор журнала и замеры
+        public VoteStatus castVote(String voterId, String candidateId) {
+            Leaderboard.Standing standing = votes.get(candidateId);
+            if (standing == null) {
+                return VoteStatus.UNKNOWN_CANDIDATE;
+            }
+            // Чтение без блокировки отсекает повторные попытки
+            return !voterIds.contains(voterId) && count(voterId, standing) ? VoteStatus.ACCEPTED : VoteStatus.ALREADY_VOTED;
+        }
+        
+        // Учет голоса с записью в журнал: record получает действие учета и выполняет
+        // его только после записи; false - запись не удалась, и голос не виден нигде.
+        // Попытки одного избирателя идут по очереди, попытки разных - параллельно
+        public VoteStatus castVote(String voterId, String candidateId, Predicate<Runnable> record) {
+            Leaderboard.Standing standing = votes.get(candidateId);
+            if (standing == null) {
+                return VoteStatus.UNKNOWN_CANDIDATE;
+            }
+            CompletableFuture<Void> attempt = new CompletableFuture<>();
+            for (CompletableFuture<Void> previous; (previous = pendingVotes.putIfAbsent(voterId, attempt)) != null; ) {
+                previous.join();
+            }
+            try {
+                if (voterIds.contains(voterId)) {
+                    return VoteStatus.ALREADY_VOTED;
+                }
+                boolean[] counted = new boolean[1];
+                if (!record.test(() -> counted[0] = count(voterId, standing))) {
+                    return VoteStatus.NOT_SAVED;
+                }
+                return counted[0] ? VoteStatus.ACCEPTED : VoteStatus.ALREADY_VOTED;
+            } finally {
+                pendingVotes.remove(voterId);
+                attempt.complete(null);
+            }
+        }
+        
+        // Добавление в множество атомарно и удается ровно один раз для избирателя,
+        // поэтому каждому успешному добавлению соответствует ровно один инкремент.
+        // Голоса друг друга не блокируют: блокировка разделяемая и нужна только затем,
+        // чтобы снимок не застал избирателя уже добавленным, а его голос - еще не учтенным
+        private boolean count(String voterId, Leaderboard.Standing standing) {
+            stateLock.readLock().lock();
+            try {
+                if (!voterIds.add(voterId)) {
+                    return false;
+                }
+                leaderboard.addVotes(standing, 1);
+            } finally {
+                stateLock.readLock().unlock();
+            }
+            invalidateResults();
+            return true;
+        }
+        
+        // Итоги и проголосовавшие для снимка, согласованные между собой. Иначе избиратель
+        // мог попасть в снимок без своего голоса, и при повторе журнала голос отклонялся
+        // бы как повторный. Под блокировкой только копирование, запись идет после
+        void captureState(Map<String, Long> votesOut, Collection<String> voterIdsOut) {
+            stateLock.writeLock().lock();
+            try {
+                votesOut.putAll(getVotes());
+                voterIdsOut.addAll(voterIds);
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+        }
+        
+        // Снимок результатов в порядке добавления кандидатов; во время голосования
+        // каждый счетчик читается атомарно, но снимок не согласован между кандидатами
+        public Map<String, Long> getVotes() {
+            Map<String, Long> snapshot = new LinkedHashMap<>();
+            for (String candidateId : getCandidateIds()) {
+                snapshot.put(candidateId, votes.get(candidateId).getVotes());
+            }
+            return snapshot;
+        }
+        
+        // Восстановление итогов из снимка
+        void restoreVotes(String candidateId, long count) {
+            leaderboard.addVotes(votes.get(candidateId), count);
+            invalidateResults();
+        }
+        
+        void restoreVoters(Collection<String> ids) {
+            if (voterIds.isEmpty()) {
+                voterIds = ConcurrentHashMap.newKeySet(ids.size());
+            }
+            voterIds.addAll(ids);
+        }
+        
+        public long getTotalVotes() {
+            long total = 0;
+            for (Leaderboard.Standing standing : votes.values()) {
+                total += standing.getVotes();
+            }
+            return total;
+        }
+        
+        // Место кандидата в живом рейтинге начиная с 1; 0, если кандидат не участвует
+        public int getRank(String candidateId) {
+            Leaderboard.Standing standing = votes.get(candidateId);
+            return standing != null ? leaderboard.getRank(standing) : 0;
+        }
+        
+        public Leaderboard getLeaderboard() { return leaderboard; }
+        
+        // Итоги из кэша, пока не пришел новый голос. Признак поднимается до чтения
+        // счетчиков, а голос сбрасывает его после инкремента: голос, не попавший
+        // в снимок, обязательно увидит поднятый признак и сбросит его
+        public VotingResults getResults(Function<String, String> partyOf) {
+            VotingResults current = results;
+            if (current != null && resultsValid) {
+                return current;
+            }
+            synchronized (this) {
+                current = results;
+                if (current == null || !resultsValid) {
+                    resultsValid = true;
+                    current = new VotingResults(getVotes(), partyOf);
+                    results = current;
+                }
+                return current;
+            }
+        }
+        
+        // На пути голоса только чтение признака; запись - лишь при первом голосе после расчета
+        void invalidateResults() {
+            if (resultsValid) {
+                resultsValid = false;
+            }
+        }
+    }
+}
+
+// Журнал изменений с упреждающей записью. Каждая запись хранится как длина,
+// тип, данные и CRC32 типа и данных; оборванная или поврежденная запись
+// в конце сегмента при восстановлении отбрасывается. Записи сбрасываются на диск
+// отдельным потоком группами: один вызов force подтверждает все записи,
+// накопившиеся в очереди за время предыдущего сброса
+class VoteJournal implements Closeable {
+    interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+    
+    interface RecordReader {
+        void read(byte type, DataInputStream in) throws IOException;
+    }
+    
+    private static final int MAX_BATCH = 4096;
+    private static final int MAX_RECORD = 1 << 26;
+    
+    // Служебные команды потоку записи
+    private static final int APPEND = 0;
+    private static final int ROTATE = 1;
+    private static final int CLOSE = 2;
+    
+    private static class Pending {
+        final int command;
+        final byte[] record;
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+        
+        Pending(int command, byte[] record) {
+            this.command = command;
+            this.record = record;
+        }
+    }
+    
+    private final Path directory;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong pendingRecords = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed;
+    private FileChannel channel;
+    private long segment;
+    
+    public VoteJournal(Path directory, long segment) throws IOException {
+        this.directory = directory;
+        this.segment = segment;
+        this.channel = open(segment);
+        this.writer = new Thread(this::writeLoop, "vote-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    public static Path segmentPath(Path directory, long segment) {
+        return directory.resolve("journal-" + segment + ".log");
+    }
+    
+    private FileChannel open(long segment) throws IOException {
+        return FileChannel.open(segmentPath(directory, segment), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+    
+    // Запись завершается, когда она и все предыдущие записи сброшены на диск
+    public CompletableFuture<Long> append(byte[] record) throws IOException {
+        pendingRecords.incrementAndGet();
+        return submit(APPEND, record);
+    }
+    
+    // Переключение на новый сегмент; возвращает его номер
+    public long rotate() throws IOException {
+        long next = await(submit(ROTATE, null));
+        pendingRecords.set(0);
+        return next;
+    }
+    
+    // Число записей с последнего переключения сегмента
+    public long getPendingRecords() {
+        return pendingRecords.get();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            await(submit(CLOSE, null));
+        }
+    }
+    
+    private CompletableFuture<Long> submit(int command, byte[] record) throws IOException {
+        if (closed) {
+            throw new IOException("Журнал закрыт");
+        }
+        Pending pending = new Pending(command, record);
+        queue.add(pending);
+        return pending.done;
+    }
+    
+    private static long await(CompletableFuture<Long> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+    
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH];
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            
+            // Записи подтверждаются сразу после сброса на диск, поэтому ошибка
+            // следующей команды пакета не отменяет уже сохраненные записи
+            boolean stop = false;
+            int done = 0;
+            try {
+                int count = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    Pending pending = batch.get(i);
+                    if (pending.command == APPEND) {
+                        buffers[count++] = ByteBuffer.wrap(pending.record);
+                        continue;
+                    }
+                    flush(buffers, count);
+                    count = 0;
+                    done = complete(batch, done, i);
+                    if (pending.command == ROTATE) {
+                        // Новый сегмент открывается до закрытия текущего: если открыть
+                        // не удалось, запись продолжается в прежний сегмент
+                        FileChannel previous = channel;
+                        channel = open(segment + 1);
+                        segment++;
+                        previous.close();
+                    } else {
+                        channel.close();
+                        closed = true;
+                        stop = true;
+                    }
+                    done = complete(batch, done, i + 1);
+                }
+                flush(buffers, count);
+                complete(batch, done, batch.size());
+            } catch (IOException e) {
+                for (int i = done; i < batch.size(); i++) {
+                    batch.get(i).done.completeExceptionally(e);
+                }
+            }
+            Arrays.fill(buffers, null);
+            batch.clear();
+            if (stop) {
+                for (Pending pending; (pending = queue.poll()) != null; ) {
+                    pending.done.completeExceptionally(new IOException("Журнал закрыт"));
+                }
+                return;
+            }
+        }
+    }
+    
+    private int complete(List<Pending> batch, int from, int to) {
+        for (int i = from; i < to; i++) {
+            batch.get(i).done.complete(segment);
+        }
+        return to;
+    }
+    
+    // При ошибке недописанный хвост отрезается: иначе повтор журнала остановился бы
+    // на нем и не дошел до записей, успешно добавленных позже
+    private void flush(ByteBuffer[] buffers, int count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        long start = channel.size();
+        try {
+            for (int first = 0; first < count; ) {
+                channel.write(buffers, first, count - first);
+                while (first < count && !buffers[first].hasRemaining()) {
+                    first++;
+                }
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            try {
+                channel.truncate(start);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+    
+    public static byte[] encode(byte type, RecordWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeByte(type);
+        writer.write(out);
+        out.writeInt(0);
+        
+        byte[] record = bytes.toByteArray();
+        int length = record.length - 8;
+        CRC32 crc = new CRC32();
+        crc.update(record, 4, length);
+        ByteBuffer.wrap(record).putInt(0, length).putInt(record.length - 4, (int) crc.getValue());
+        return record;
+    }
+    
+    // Читает записи до конца файла или до первой неполной или поврежденной записи;
+    // возвращает длину корректной части файла
+    public static long replay(Path file, RecordReader reader) throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            CRC32 crc = new CRC32();
+            byte[] body = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD) {
+                        break;
+                    }
+                    if (body.length < length) {
+                        body = new byte[Math.max(length, body.length * 2)];
+                    }
+                    in.readFully(body, 0, length);
+                    crc.reset();
+                    crc.update(body, 0, length);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                reader.read(body[0], new DataInputStream(new ByteArrayInputStream(body, 1, length - 1)));
+                valid += length + 8;
+            }
+        }
+        return valid;
+    }
+    
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+    
+    public static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+    
+    public static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException {
+        // Коллекция может меняться во время снимка, поэтому пишется ее копия
+        List<String> copy = new ArrayList<>(values);
+        out.writeInt(copy.size());
+        for (String value : copy) {
+            out.writeUTF(value);
+        }
+    }
+    
+    public static List<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(in.readUTF());
+        }
+        return values;
+    }
+}
+
+// Двоичный формат снимка, версия 1:
+//   заголовок: MAGIC, номер версии, номер сегмента журнала;
+//   блоки: вид, длина, данные, CRC32 данных; блок содержит записи одного вида;
+//   строки записей заменены номерами в таблице строк, которая пишется блоками
+//   после записей, поэтому повторяющиеся строки (даты, партии, идентификаторы
+//   голосований и избирателей) хранятся и загружаются один раз;
+//   окончание: блок фиксированной длины со смещением таблицы строк,
+//   числом строк и числом записей.
+// Блоки читаются через отображение файла в память без промежуточного копирования
+class SnapshotFormat {
+    static final int MAGIC = 0x564F5445;
+    static final int VERSION = 1;
+    
+    private static final byte STRINGS = 0;
+    private static final byte END = -1;
+    private static final int HEADER_SIZE = 16;
+    private static final int END_PAYLOAD = 20;
+    private static final int END_SIZE = 9 + END_PAYLOAD;
+    // Новый блок начинается, когда текущий превысил этот размер
+    private static final int BLOCK_SIZE = 1 << 20;
+    
+    static class Writer {
+        private final FileChannel channel;
+        private final Map<String, Integer> indices = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE * 2);
+        private byte kind = END;
+        private long records;
+        
+        Writer(FileChannel channel, long segment) throws IOException {
+            this.channel = channel;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putLong(segment);
+            header.flip();
+            write(header);
+        }
+        
+        void startRecord(byte kind) throws IOException {
+            if (kind != this.kind || block.position() >= BLOCK_SIZE) {
+                flushBlock();
+                this.kind = kind;
+            }
+            records++;
+        }
+        
+        void writeInt(int value) {
+            ensure(4);
+            block.putInt(value);
+        }
+        
+        void writeLong(long value) {
+            ensure(8);
+            block.putLong(value);
+        }
+        
+        void writeString(String value) {
+            writeInt(value == null ? -1 : intern(value));
+        }
+        
+        void writeStrings(Collection<String> values) {
+            // Коллекция может меняться во время снимка, поэтому пишется ее копия
+            List<String> copy = new ArrayList<>(values);
+            writeInt(copy.size());
+            for (String value : copy) {
+                writeString(value);
+            }
+        }
+        
+        void finish() throws IOException {
+            flushBlock();
+            long stringsOffset = channel.position();
+            kind = STRINGS;
+            for (String value : strings) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                if (block.position() >= BLOCK_SIZE) {
+                    flushBlock();
+                }
+                ensure(4 + bytes.length);
+                block.putInt(bytes.length).put(bytes);
+            }
+            flushBlock();
+            kind = END;
+            block.putLong(stringsOffset).putInt(strings.size()).putLong(records);
+            flushBlock();
+        }
+        
+        private int intern(String value) {
+            Integer index = indices.putIfAbsent(value, strings.size());
+            if (index == null) {
+                strings.add(value);
+                return strings.size() - 1;
+            }
+            return index;
+        }
+        
+        private void ensure(int bytes) {
+            if (block.remaining() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(block.capacity() * 2, block.position() + bytes));
+                block.flip();
+                larger.put(block);
+                block = larger;
+            }
+        }
+        
+        private void flushBlock() throws IOException {
+            if (block.position() == 0) {
+                return;
+            }
+            block.flip();
+            CRC32 crc = new CRC32();
+            crc.update(block.duplicate());
+            ByteBuffer head = ByteBuffer.allocate(5).put(kind).putInt(block.remaining());
+            ByteBuffer tail = ByteBuffer.allocate(4).putInt((int) crc.getValue());
+            head.flip();
+            tail.flip();
+            write(head, block, tail);
+            block.clear();
+        }
+        
+        private void write(ByteBuffer... buffers) throws IOException {
+            while (buffers[buffers.length - 1].hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+    }
+    
+    static class Reader {
+        interface RecordReader {
+            void read(byte kind, Reader in) throws IOException;
+        }
+        
+        private final FileChannel channel;
+        private final long segment;
+        private final long stringsOffset;
+        private final long records;
+        private final String[] strings;
+        private ByteBuffer block;
+        
+        Reader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            long size = channel.size();
+            if (size < HEADER_SIZE + END_SIZE) {
+                throw new IOException("Снимок поврежден: слишком короткий файл");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Файл не является снимком");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Неподдерживаемая версия снимка: " + version);
+            }
+            segment = header.getLong();
+            
+            long endOffset = size - END_SIZE;
+            ByteBuffer end = readBlock(endOffset, END);
+            stringsOffset = end.getLong();
+            strings = new String[end.getInt()];
+            records = end.getLong();
+            
+            int count = 0;
+            byte[] bytes = new byte[256];
+            for (long position = stringsOffset; position < endOffset; position += 9 + block.capacity()) {
+                block = readBlock(position, STRINGS);
+                while (block.hasRemaining()) {
+                    int length = block.getInt();
+                    if (bytes.length < length) {
+                        bytes = new byte[Math.max(length, bytes.length * 2)];
+                    }
+                    block.get(bytes, 0, length);
+                    strings[count++] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                }
+            }
+            if (count != strings.length) {
+                throw new IOException("Снимок поврежден: неполная таблица строк");
+            }
+        }
+        
+        long getSegment() { return segment; }
+        
+        // Передает обработчику записи всех блоков по порядку
+        void read(RecordReader reader) throws IOException {
+            long count = 0;
+            for (long position = HEADER_SIZE; position < stringsOffset; position += 9 + block.capacity()) {
+                byte kind = readKind(position);
+                block = readBlock(position, kind);
+                while (block.hasRemaining()) {
+                    reader.read(kind, this);
+                    count++;
+                }
+            }
+            if (count != records) {
+                throw new IOException("Снимок поврежден: прочитано " + count + " записей из " + records);
+            }
+        }
+        
+        int readInt() { return block.getInt(); }
+        long readLong() { return block.getLong(); }
+        
+        String readString() throws IOException {
+            int index = block.getInt();
+            if (index < -1 || index >= strings.length) {
+                throw new IOException("Снимок поврежден: неверный номер строки " + index);
+            }
+            return index < 0 ? null : strings[index];
+        }
+        
+        List<String> readStrings() throws IOException {
+            int size = block.getInt();
+            List<String> values = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                values.add(readString());
+            }
+            return values;
+        }
+        
+        private byte readKind(long position) throws IOException {
+            ByteBuffer kind = ByteBuffer.allocate(1);
+            channel.read(kind, position);
+            return kind.get(0);
+        }
+        
+        // Отображает данные блока в память и проверяет вид и контрольную сумму
+        private ByteBuffer readBlock(long position, byte kind) throws IOException {
+            ByteBuffer head = ByteBuffer.allocate(5);
+            channel.read(head, position);
+            int length = head.getInt(1);
+            if (head.get(0) != kind || length < 0 || position + 9 + length > channel.size()) {
+                throw new IOException("Снимок поврежден: неверный блок по смещению " + position);
+            }
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, position + 5, length);
+            ByteBuffer tail = ByteBuffer.allocate(4);
+            channel.read(tail, position + 5 + length);
+            CRC32 crc = new CRC32();
+            crc.update(data.duplicate());
+            if (tail.getInt(0) != (int) crc.getValue()) {
+                throw new IOException("Снимок поврежден: неверная контрольная сумма блока по смещению " + position);
+            }
+            return data;
+        }
+    }
+}
+
+// Каталог учетных записей: логин -> роль, пароль и данные пользователя.
+// Основная часть лежит в файле, отображенном в память: индекс с открытой
+// адресацией по хешу логина и записи переменной длины; объект создается только
+// при обращении к записи. Изменения после последнего снимка хранятся в куче
+// поверх файла и при снимке переносятся в новый файл, поэтому расход кучи
+// не зависит от числа зарегистрированных избирателей.
+// Формат файла, версия 1:
+//   заголовок: MAGIC, версия, размер индекса, число записей, конец данных;
+//   индекс: ячейки по 8 байт - 24 бита хеша логина и 40 бит смещения записи;
+//   записи: роль, длина, логин, пароль, поля, список голосований
+class UserDirectory {
+    static final byte USER = 1;
+    static final byte CEC = 2;
+    static final byte CANDIDATE = 3;
+    
+    private static final int MAGIC = 0x55444952;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    // Файл отображается частями по 1 ГБ; запись не пересекает границу части
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final int MAX_CAPACITY = 1 << 27;
+    private static final int NULL_STRING = 0xFFFF;
+    
+    static final class Entry {
+        final byte role;
+        final String login;
+        final String password;
+        final String[] fields;
+        final List<String> list;
+        
+        Entry(byte role, String login, String password, String[] fields, List<String> list) {
+            this.role = role;
+            this.login = login;
+            this.password = password;
+            this.fields = fields;
+            this.list = list;
+        }
+    }
+    
+    static final class Credentials {
+        final byte role;
+        final String password;
+        
+        Credentials(byte role, String password) {
+            this.role = role;
+            this.password = password;
+        }
+    }
+    
+    // Отметка удаленной записи в изменениях
+    private static final Entry DELETED = new Entry((byte) 0, "", "", new String[0], Collections.emptyList());
+    
+    private final Path file;
+    // Изменения идут под разделяемой блокировкой; исключительная нужна только
+    // на время подмены карты изменений при снимке
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile Map<String, Entry> changes = new ConcurrentHashMap<>();
+    // Изменения, переносимые в новый файл; до его готовности читаются отсюда
+    private volatile Map<String, Entry> frozen;
+    private volatile Base base;
+    
+    UserDirectory(Path file) {
+        this.file = file;
+    }
+    
+    void load() throws IOException {
+        if (Files.exists(file)) {
+            base = new Base(file);
+        }
+    }
+    
+    Entry get(String login) {
+        Entry entry = changed(login);
+        if (entry != null) {
+            return entry == DELETED ? null : entry;
+        }
+        Base current = base;
+        return current == null ? null : current.get(login);
+    }
+    
+    // Роль учетной записи или 0, если логин свободен
+    byte roleOf(String login) {
+        Entry entry = changed(login);
+        if (entry != null) {
+            return entry.role;
+        }
+        Base current = base;
+        return current == null ? 0 : current.roleOf(login);
+    }
+    
+    // Роль и сохраненный пароль одним обращением, без чтения остальных полей;
+    // null, если логина нет
+    Credentials getCredentials(String login) {
+        Entry entry = changed(login);
+        if (entry != null) {
+            return entry == DELETED ? null : new Credentials(entry.role, entry.password);
+        }
+        Base current = base;
+        return current == null ? null : current.getCredentials(login);
+    }
+    
+    void put(Entry entry) {
+        lock.readLock().lock();
+        try {
+            changes.put(entry.login, entry);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    void remove(String login) {
+        lock.readLock().lock();
+        try {
+            changes.put(login, DELETED);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    // Атомарное изменение записи: функция получает текущую запись или null
+    // и возвращает новую запись или null, если менять ничего не нужно
+    void update(String login, UnaryOperator<Entry> change) {
+        lock.readLock().lock();
+        try {
+            changes.compute(login, (key, entry) -> {
+                Entry current = entry != null ? entry : stored(key);
+                Entry updated = change.apply(current == DELETED ? null : current);
+                return updated != null ? updated : entry;
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    void forEach(Consumer<Entry> action) {
+        Map<String, Entry> recent = changes;
+        Map<String, Entry> older = frozen;
+        Base current = base;
+        for (Entry entry : recent.values()) {
+            if (entry != DELETED) {
+                action.accept(entry);
+            }
+        }
+        if (older != null) {
+            for (Entry entry : older.values()) {
+                if (entry != DELETED && !recent.containsKey(entry.login)) {
+                    action.accept(entry);
+                }
+            }
+        }
+        if (current != null) {
+            for (long offset = current.first(); offset < current.end; offset = current.next(offset)) {
+                Entry entry = current.read(offset);
+                if (!recent.containsKey(entry.login) && (older == null || !older.containsKey(entry.login))) {
+                    action.accept(entry);
+                }
+            }
+        }
+    }
+    
+    // Перенос изменений в новый файл, который атомарно заменяет прежний
+    synchronized void rewrite() throws IOException {
+        Map<String, Entry> pending;
+        lock.writeLock().lock();
+        try {
+            pending = changes;
+            frozen = pending;
+            changes = new ConcurrentHashMap<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        Base old = base;
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (Builder builder = new Builder(temporary, (old == null ? 0 : old.count) + pending.size())) {
+                if (old != null) {
+                    for (long offset = old.first(); offset < old.end; offset = old.next(offset)) {
+                        Entry entry = old.read(offset);
+                        if (!pending.containsKey(entry.login)) {
+                            builder.add(entry);
+                        }
+                    }
+                }
+                for (Entry entry : pending.values()) {
+                    if (entry != DELETED) {
+                        builder.add(entry);
+                    }
+                }
+                builder.finish();
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            base = new Base(file);
+        } catch (IOException e) {
+            // Изменения возвращаются в кучу, более новые значения сохраняются
+            lock.writeLock().lock();
+            try {
+                pending.forEach(changes::putIfAbsent);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            throw e;
+        } finally {
+            frozen = null;
+        }
+    }
+    
+    private Entry changed(String login) {
+        Entry entry = changes.get(login);
+        if (entry == null) {
+            Map<String, Entry> older = frozen;
+            if (older != null) {
+                entry = older.get(login);
+            }
+        }
+        return entry;
+    }
+    
+    private Entry stored(String login) {
+        Map<String, Entry> older = frozen;
+        Entry entry = older != null ? older.get(login) : null;
+        if (entry != null) {
+            return entry;
+        }
+        Base current = base;
+        return current == null ? null : current.get(login);
+    }
+    
+    private static int hash(String login) {
+        int h = login.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 15);
+    }
+    
+    private static long tag(int hash) {
+        return (hash >>> 8) & 0xFFFFFF;
+    }
+    
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(entry.role);
+        out.writeInt(0);
+        writeString(out, entry.login);
+        writeString(out, entry.password);
+        out.writeByte(entry.fields.length);
+        for (String field : entry.fields) {
+            writeString(out, field);
+        }
+        out.writeInt(entry.list.size());
+        for (String item : entry.list) {
+            writeString(out, item);
+        }
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(1, record.length - 5);
+        return record;
+    }
+    
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeShort(NULL_STRING);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= NULL_STRING) {
+            throw new IOException("Слишком длинная строка в учетной записи");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length == NULL_STRING) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    // Отображенный в память файл каталога; не изменяется после создания
+    private static final class Base {
+        final ByteBuffer[] chunks;
+        final int mask;
+        final long count;
+        final long end;
+        final long recordsOffset;
+        
+        Base(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < HEADER_SIZE) {
+                    throw new IOException("Каталог пользователей поврежден: " + file);
+                }
+                chunks = new ByteBuffer[(int) ((size + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+                for (int i = 0; i < chunks.length; i++) {
+                    long position = (long) i << CHUNK_BITS;
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, size - position));
+                }
+                ByteBuffer header = chunks[0];
+                if (header.getInt(0) != MAGIC) {
+                    throw new IOException("Файл не является каталогом пользователей: " + file);
+                }
+                if (header.getInt(4) != VERSION) {
+                    throw new IOException("Неподдерживаемая версия каталога пользователей: " + header.getInt(4));
+                }
+                int capacity = header.getInt(8);
+                count = header.getLong(16);
+                end = header.getLong(24);
+                mask = capacity - 1;
+                recordsOffset = HEADER_SIZE + (long) capacity * 8;
+                if (Integer.bitCount(capacity) != 1 || recordsOffset > end || end > size) {
+                    throw new IOException("Каталог пользователей поврежден: " + file);
+                }
+            }
+        }
+        
+        Entry get(String login) {
+            long offset = find(login);
+            return offset < 0 ? null : read(offset);
+        }
+        
+        byte roleOf(String login) {
+            long offset = find(login);
+            return offset < 0 ? 0 : chunk(offset).get(index(offset));
+        }
+        
+        Credentials getCredentials(String login) {
+            long offset = find(login);
+            if (offset < 0) {
+                return null;
+            }
+            long position = offset + 5;
+            position += 2 + (chunk(position).getShort(index(position)) & 0xFFFF);
+            ByteBuffer in = chunk(position).duplicate();
+            in.position(index(position));
+            return new Credentials(chunk(offset).get(index(offset)), readString(in));
+        }
+        
+        // Смещение записи с данным логином или -1
+        long find(String login) {
+            byte[] bytes = login.getBytes(StandardCharsets.UTF_8);
+            int hash = hash(login);
+            long tag = tag(hash);
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                long position = HEADER_SIZE + (long) i * 8;
+                long slot = chunk(position).getLong(index(position));
+                if (slot == 0) {
+                    return -1;
+                }
+                long offset = slot & OFFSET_MASK;
+                if (slot >>> OFFSET_BITS == tag && matches(offset + 5, bytes)) {
+                    return offset;
+                }
+            }
+        }
+        
+        // Сравнение строки записи с байтами без создания объектов
+        private boolean matches(long position, byte[] bytes) {
+            ByteBuffer chunk = chunk(position);
+            int index = index(position);
+            if ((chunk.getShort(index) & 0xFFFF) != bytes.length) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (chunk.get(index + 2 + i) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        Entry read(long offset) {
+            ByteBuffer in = chunk(offset).duplicate();
+            in.position(index(offset));
+            byte role = in.get();
+            in.getInt();
+            String login = readString(in);
+            String password = readString(in);
+            String[] fields = new String[in.get() & 0xFF];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = readString(in);
+            }
+            int size = in.getInt();
+            List<String> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(readString(in));
+            }
+            return new Entry(role, login, password, fields, list);
+        }
+        
+        long first() {
+            return skipPadding(recordsOffset);
+        }
+        
+        long next(long offset) {
+            return skipPadding(offset + 5 + chunk(offset).getInt(index(offset) + 1));
+        }
+        
+        // Нулевой байт роли означает заполнение до конца части файла
+        private long skipPadding(long position) {
+            while (position < end && chunk(position).get(index(position)) == 0) {
+                position = ((position >>> CHUNK_BITS) + 1) << CHUNK_BITS;
+            }
+            return Math.min(position, end);
+        }
+        
+        private ByteBuffer chunk(long position) {
+            return chunks[(int) (position >>> CHUNK_BITS)];
+        }
+        
+        private static int index(long position) {
+            return (int) (position & (CHUNK_SIZE - 1));
+        }
+    }
+    
+    // Построение нового файла: индекс заполняется через отображение в память,
+    // записи пишутся последовательно
+    private static final class Builder implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer slots;
+        private final int capacity;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        private long position;
+        private long written;
+        private long count;
+        
+        Builder(Path file, long entries) throws IOException {
+            // Заполнение индекса не больше половины
+            long wanted = Math.max(16, Long.highestOneBit(Math.max(1, entries) * 2 - 1) << 1);
+            if (wanted > MAX_CAPACITY) {
+                throw new IOException("Слишком много учетных записей: " + entries);
+            }
+            capacity = (int) wanted;
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            slots = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, (long) capacity * 8);
+            position = HEADER_SIZE + (long) capacity * 8;
+            written = position;
+        }
+        
+        void add(Entry entry) throws IOException {
+            byte[] record = encode(entry);
+            if (position >>> CHUNK_BITS != (position + record.length - 1) >>> CHUNK_BITS) {
+                long boundary = ((position >>> CHUNK_BITS) + 1) << CHUNK_BITS;
+                while (position < boundary) {
+                    if (!buffer.hasRemaining()) {
+                        flush();
+                    }
+                    int zeros = (int) Math.min(buffer.remaining(), boundary - position);
+                    buffer.put(new byte[zeros]);
+                    position += zeros;
+                }
+            }
+            
+            int hash = hash(entry.login);
+            int mask = capacity - 1;
+            int i = hash & mask;
+            while (slots.getLong(i * 8) != 0) {
+                i = (i + 1) & mask;
+            }
+            slots.putLong(i * 8, tag(hash) << OFFSET_BITS | position);
+            
+            if (buffer.remaining() < record.length) {
+                flush();
+            }
+            if (record.length > buffer.capacity()) {
+                write(ByteBuffer.wrap(record));
+            } else {
+                buffer.put(record);
+            }
+            position += record.length;
+            count++;
+        }
+        
+        void finish() throws IOException {
+            flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(capacity).putInt(0).putLong(count).putLong(position);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            ((java.nio.MappedByteBuffer) slots).force();
+            channel.force(true);
+        }
+        
+        private void flush() throws IOException {
+            buffer.flip();
+            write(buffer);
+            buffer.clear();
+        }
+        
+        private void write(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                written += channel.write(data, written);
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
+
+// Итоги голосования: снимок счетчиков и построенные по нему представления.
+// Представления вычисляются при первом обращении и хранятся вместе со снимком,
+// поэтому повторные просмотры до нового голоса ничего не пересчитывают.
+// При большом числе кандидатов агрегирование идет параллельными потоками
+class VotingResults {
+    static final int PARALLEL_THRESHOLD = 10_000;
+    static final String NO_PARTY = "Без партии";
+    
+    // Больше голосов - выше; при равенстве порядок по идентификатору кандидата
+    static final Comparator<Map.Entry<String, Long>> BY_VOTES = Map.Entry.<String, Long>comparingByValue()
+        .reversed().thenComparing(Map.Entry.comparingByKey());
+    
+    private final Map<String, Long> counts;
+    private final Function<String, String> partyOf;
+    private final long total;
+    private volatile List<Map.Entry<String, Long>> sorted;
+    private volatile List<Map.Entry<String, Long>> top;
+    private volatile Map<String, Long> partyTotals;
+    private volatile Map<String, List<Map.Entry<String, Long>>> byParty;
+    
+    VotingResults(Map<String, Long> counts, Function<String, String> partyOf) {
+        this.counts = Collections.unmodifiableMap(counts);
+        this.partyOf = partyOf;
+        long sum = 0;
+        for (long count : counts.values()) {
+            sum += count;
+        }
+        this.total = sum;
+    }
+    
+    public long getTotal() { return total; }
+    public Map<String, Long> getCounts() { return counts; }
+    public long getCount(String candidateId) { return counts.getOrDefault(candidateId, 0L); }
+    
+    private <T> Stream<T> stream(Collection<T> items) {
+        return items.size() >= PARALLEL_THRESHOLD ? items.parallelStream() : items.stream();
+    }
+    
+    // Все кандидаты по убыванию голосов
+    public List<Map.Entry<String, Long>> getSorted() {
+        List<Map.Entry<String, Long>> result = sorted;
+        if (result == null) {
+            result = Collections.unmodifiableList(stream(counts.entrySet()).sorted(BY_VOTES).collect(Collectors.toList()));
+            sorted = result;
+        }
+        return result;
+    }
+    
+    // Первые k мест без полной сортировки: куча хранит k лучших, на ее вершине худший
+    // из них, и каждый следующий кандидат сравнивается только с вершиной - O(n log k).
+    // В параллельном режиме у каждой части своя куча, затем кучи сливаются
+    public List<Map.Entry<String, Long>> getTop(int k) {
+        List<Map.Entry<String, Long>> result = sorted;
+        if (result != null || k >= counts.size()) {
+            result = getSorted();
+            return result.subList(0, Math.min(Math.max(k, 0), result.size()));
+        }
+        if (k <= 0) {
+            return Collections.emptyList();
+        }
+        // Последний топ запоминается: оператор обычно обновляет один и тот же вид
+        result = top;
+        if (result == null || result.size() < k) {
+            result = Collections.unmodifiableList(
+                stream(counts.entrySet()).collect(() -> new TopK(k), TopK::add, TopK::addAll).toList());
+            top = result;
+        }
+        return result.subList(0, k);
+    }
+    
+    // Суммы голосов по партиям в порядке убывания
+    public Map<String, Long> getPartyTotals() {
+        Map<String, Long> result = partyTotals;
+        if (result == null) {
+            Map<String, Long> sums = counts.size() >= PARALLEL_THRESHOLD
+                ? counts.entrySet().parallelStream().collect(Collectors.groupingByConcurrent(
+                    entry -> partyOf.apply(entry.getKey()), Collectors.summingLong(Map.Entry::getValue)))
+                : counts.entrySet().stream().collect(Collectors.groupingBy(
+                    entry -> partyOf.apply(entry.getKey()), Collectors.summingLong(Map.Entry::getValue)));
+            Map<String, Long> ordered = new LinkedHashMap<>();
+            sums.entrySet().stream().sorted(BY_VOTES).forEach(entry -> ordered.put(entry.getKey(), entry.getValue()));
+            result = Collections.unmodifiableMap(ordered);
+            partyTotals = result;
+        }
+        return result;
+    }
+    
+    // Кандидаты по партиям; внутри партии порядок по голосам сохраняется из общего
+    // списка, так как группировка упорядоченного потока не меняет порядок элементов
+    public Map<String, List<Map.Entry<String, Long>>> getByParty() {
+        Map<String, List<Map.Entry<String, Long>>> result = byParty;
+        if (result == null) {
+            Map<String, List<Map.Entry<String, Long>>> groups = stream(getSorted())
+                .collect(Collectors.groupingBy(entry -> partyOf.apply(entry.getKey())));
+            Map<String, List<Map.Entry<String, Long>>> ordered = new LinkedHashMap<>();
+            for (String party : getPartyTotals().keySet()) {
+                ordered.put(party, Collections.unmodifiableList(groups.get(party)));
+            }
+            result = Collections.unmodifiableMap(ordered);
+            byParty = result;
+        }
+        return result;
+    }
+    
+    private static class TopK {
+        private final int limit;
+        private final PriorityQueue<Map.Entry<String, Long>> heap;
+        
+        TopK(int limit) {
+            this.limit = limit;
+            this.heap = new PriorityQueue<>(limit + 1, BY_VOTES.reversed());
+        }
+        
+        void add(Map.Entry<String, Long> entry) {
+            if (heap.size() < limit) {
+                heap.add(entry);
+            } else if (BY_VOTES.compare(entry, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+        
+        void addAll(TopK other) {
+            other.heap.forEach(this::add);
+        }
+        
+        List<Map.Entry<String, Long>> toList() {
+            List<Map.Entry<String, Long>> list = new ArrayList<>(heap);
+            list.sort(BY_VOTES);
+            return list;
+        }
+    }
+}
+
+// Живой рейтинг кандидатов одного голосования: массив участников по убыванию
+// голосов, место кандидата - его индекс. Голос только прибавляет к счетчику
+// и ставит кандидата в очередь измененных, ничего не блокируя; очередь разбирается
+// при запросе рейтинга. Кандидаты переставляются по одному, так что остальной
+// массив всегда упорядочен: новое место находится двоичным поиском за O(log n),
+// но пройденные участники сдвигаются на одну позицию, так что перестановка стоит
+// O(log n + число пройденных мест), в худшем случае O(n). При равенстве голосов
+// выше тот, кто набрал это число раньше
+class Leaderboard implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    static final class Standing implements Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        private final String id;
+        private final LongAdder counter = new LongAdder();
+        private final AtomicBoolean queued = new AtomicBoolean();
+        // Голоса и место на момент последнего разбора очереди
+        private long count;
+        private int position;
+        
+        private Standing(String id) {
+            this.id = id;
+        }
+        
+        public String getId() { return id; }
+        public long getVotes() { return counter.sum(); }
+    }
+    
+    // Меньше этого полная сортировка не нужна: поочередные перестановки дешевы
+    private static final int BULK_SORT_MIN_SIZE = 256;
+    
+    private final Queue<Standing> changed = new ConcurrentLinkedQueue<>();
+    private Standing[] order = new Standing[16];
+    private int size;
+    private long total;
+    
+    // Новый кандидат без голосов встает в конец
+    synchronized Standing add(String id) {
+        if (size == order.length) {
+            order = Arrays.copyOf(order, size * 2);
+        }
+        Standing standing = new Standing(id);
+        standing.position = size;
+        order[size++] = standing;
+        return standing;
+    }
+    
+    // В очередь попадает только первый голос после разбора. Разбор сбрасывает признак
+    // до чтения счетчика, поэтому голос, увидевший признак поднятым, будет учтен
+    void addVotes(Standing standing, long votes) {
+        standing.counter.add(votes);
+        if (!standing.queued.get() && standing.queued.compareAndSet(false, true)) {
+            changed.add(standing);
+        }
+    }
+    
+    public synchronized int getRank(Standing standing) {
+        refresh();
+        return standing.position + 1;
+    }
+    
+    // Первые n мест; голоса согласованы с порядком на момент разбора очереди
+    public synchronized List<Map.Entry<String, Long>> getTop(int n) {
+        refresh();
+        int limit = Math.min(Math.max(n, 0), size);
+        List<Map.Entry<String, Long>> top = new ArrayList<>(limit);
+        for (int i = 0; i < limit; i++) {
+            top.add(Map.entry(order[i].id, order[i].count));
+        }
+        return top;
+    }
+    
+    public synchronized long getTotal() {
+        refresh();
+        return total;
+    }
+    
+    public synchronized int size() { return size; }
+    
+    private void refresh() {
+        List<Standing> moved = new ArrayList<>();
+        Standing standing;
+        while ((standing = changed.poll()) != null) {
+            standing.queued.set(false);
+            if (standing.counter.sum() != standing.count) {
+                moved.add(standing);
+            }
+        }
+        // После загрузки снимка в большом рейтинге меняются почти все: одна
+        // устойчивая сортировка дешевле поочередных сдвигов и сохраняет порядок равных
+        if (size >= BULK_SORT_MIN_SIZE && moved.size() > size / 16) {
+            for (Standing entry : moved) {
+                long count = entry.counter.sum();
+                total += count - entry.count;
+                entry.count = count;
+            }
+            Arrays.sort(order, 0, size, Comparator.comparingLong((Standing entry) -> entry.count).reversed());
+            for (int i = 0; i < size; i++) {
+                order[i].position = i;
+            }
+            return;
+        }
+        // Голоса кандидата обновляются непосредственно перед перестановкой,
+        // поэтому двоичный поиск идет по упорядоченному массиву
+        for (Standing entry : moved) {
+            long count = entry.counter.sum();
+            long previous = entry.count;
+            total += count - previous;
+            entry.count = count;
+            if (count > previous) {
+                moveUp(entry);
+            } else if (count < previous) {
+                moveDown(entry);
+            }
+        }
+    }
+    
+    private void moveUp(Standing standing) {
+        // Первая позиция выше кандидата, где голосов меньше, чем у него теперь
+        int low = 0;
+        int high = standing.position;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (order[middle].count < standing.count) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        for (int i = standing.position; i > low; i--) {
+            order[i] = order[i - 1];
+            order[i].position = i;
+        }
+        order[low] = standing;
+        standing.position = low;
+    }
+    
+    // Симметрично moveUp; голоса только прибавляются, так что опускается кандидат
+    // лишь после отрицательной прибавки в addVotes
+    private void moveDown(Standing standing) {
+        // Последняя позиция ниже кандидата, где голосов больше, чем у него теперь
+        int low = standing.position;
+        int high = size - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (order[middle].count > standing.count) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        for (int i = standing.position; i < low; i++) {
+            order[i] = order[i + 1];
+            order[i].position = i;
+        }
+        order[low] = standing;
+        standing.position = low;
+    }
+}
+
+// Хранение паролей: PBKDF2-HMAC-SHA256 с солью, строка вида
+// pbkdf2$итерации$соль$хеш в Base64. Строка без префикса - пароль старого
+// формата в открытом виде, он проверяется и заменяется хешем при входе.
+// Вычисление хеша намеренно дорогое, поэтому идет в отдельном пуле потоков
+// ограниченного размера с ограниченной очередью: наплыв входов ждет там и не
+// отнимает все процессоры у голосования, а при переполнении очереди вход
+// отклоняется. Успешные проверки запоминаются на ограниченное время; в кэше
+// лежит HMAC пароля на случайном ключе процесса, а не сам пароль
+class PasswordHasher {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "pbkdf2$";
+    static final int ITERATIONS = 120_000;
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    
+    private static final int QUEUE_SIZE = 1024;
+    private static final int CACHE_SIZE = 10_000;
+    private static final long CACHE_TTL_NANOS = TimeUnit.MINUTES.toNanos(5);
+    
+    // Запись кэша: HMAC сохраненного хеша и пароля; смена пароля меняет сохраненный
+    // хеш, поэтому старая запись перестает совпадать сама
+    private static final class Verified {
+        final byte[] tag;
+        final long expiresAt;
+        
+        Verified(byte[] tag, long expiresAt) {
+            this.tag = tag;
+            this.expiresAt = expiresAt;
+        }
+    }
+    
+    private final SecureRandom random = new SecureRandom();
+    // Mac не потокобезопасен, поэтому у каждого потока свой, уже инициализированный
+    private final ThreadLocal<Mac> cacheMac;
+    private final ThreadPoolExecutor pool;
+    private final LinkedHashMap<String, Verified> verified;
+    private long hits;
+    private long misses;
+    
+    public PasswordHasher() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+    
+    public PasswordHasher(int threads) {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        SecretKeySpec cacheKey = new SecretKeySpec(key, "HmacSHA256");
+        this.cacheMac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(cacheKey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 недоступен", e);
+            }
+        });
+        AtomicInteger number = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUE_SIZE), task -> {
+                Thread thread = new Thread(task, "password-verify-" + number.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.verified = new LinkedHashMap<String, Verified>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+    }
+    
+    // Хеш для сохранения; при переполненной очереди пула - исключение в результате
+    public CompletableFuture<String> hash(String password) {
+        return submit(() -> {
+            byte[] salt = new byte[SALT_BYTES];
+            random.nextBytes(salt);
+            Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+            return PREFIX + ITERATIONS + "$" + encoder.encodeToString(salt) + "$"
+                + encoder.encodeToString(derive(password, salt, ITERATIONS));
+        });
+    }
+    
+    // Проверка пароля; недавно подтвержденная пара логин-пароль проверяется
+    // в вызывающем потоке по кэшу без обращения к пулу
+    public CompletableFuture<Boolean> verify(String login, String password, String stored) {
+        byte[] tag = tag(password, stored);
+        long now = System.nanoTime();
+        synchronized (this) {
+            Verified entry = verified.get(login);
+            if (entry != null && entry.expiresAt - now > 0 && MessageDigest.isEqual(entry.tag, tag)) {
+                hits++;
+                return CompletableFuture.completedFuture(true);
+            }
+            misses++;
+        }
+        return submit(() -> {
+            boolean valid = matches(password, stored);
+            if (valid) {
+                synchronized (this) {
+                    verified.put(login, new Verified(tag, System.nanoTime() + CACHE_TTL_NANOS));
+                }
+            }
+            return valid;
+        });
+    }
+    
+    // Пароль хранится в открытом виде или с меньшим числом итераций
+    public static boolean needsRehash(String stored) {
+        if (!stored.startsWith(PREFIX)) {
+            return true;
+        }
+        String[] parts = stored.split("\\$");
+        try {
+            return parts.length != 4 || Integer.parseInt(parts[1]) < ITERATIONS;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+    
+    // Счетчики попаданий и промахов кэша проверок
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, pool);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+    
+    private static boolean matches(String password, String stored) {
+        if (!stored.startsWith(PREFIX)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8),
+                stored.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        // Испорченная строка (не число итераций, не Base64, пустая соль) - просто
+        // неверный пароль, а не сбой пула
+        try {
+            Base64.Decoder decoder = Base64.getDecoder();
+            byte[] expected = decoder.decode(parts[3]);
+            return MessageDigest.isEqual(derive(password, decoder.decode(parts[2]), Integer.parseInt(parts[1])), expected);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+    
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 недоступен", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+    
+    private byte[] tag(String password, String stored) {
+        Mac mac = cacheMac.get();
+        mac.update(stored.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+}
+
+enum VoteStatus {
+    ACCEPTED("Ваш голос учтен"),
+    ALREADY_VOTED("Вы уже проголосовали в этом голосовании"),
+    UNKNOWN_CANDIDATE("Кандидат не найден"),
+    NOT_SAVED("Голос не сохранен, попробуйте еще раз");
+    
+    private final String message;
+    
+    VoteStatus(String message) {
+        this.message = message;
+    }
+    
+    public String getMessage() { return message; }
+}
+
+class VotingBenchmark {
+    private static final int CANDIDATES = 10;
+    private static final int BATCH = 1000;
+    
+    // Заранее созданные идентификаторы избирателей; после исчерпания номера идут
+    // по кругу, и повторные попытки проверяют отказ при двойном голосовании
+    private static final int VOTERS = 1 << 20;
+    
+    // Голосование с журналом: каждый поток ждет сброса своей записи на диск,
+    // поэтому пропускная способность определяется размером группы на один fsync
+    private static final int JOURNAL_THREADS = 64;
+    private static final int JOURNAL_BATCH = 10;
+    
+    // Снимок: число пользователей, каждый из которых проголосовал; лучшее из повторов
+    private static final int SNAPSHOT_USERS = 200_000;
+    private static final int SNAPSHOT_REPEATS = 3;
+    
+    // Итоги: число кандидатов (выше порога параллельного режима), партий и мест в топе
+    private static final int RESULT_CANDIDATES = 200_000;
+    private static final int RESULT_PARTIES = 50;
+    private static final int RESULT_TOP = 10;
+    private static final int RESULT_UPDATES = 1000;
+    private static final int RESULT_REPEATS = 5;
+    
+    // Проверки пароля: разные логины (PBKDF2) и повтор одного входа (кэш)
+    private static final int PASSWORD_CHECKS = 20;
+    
+    public static void run(String[] options) {
+        long seconds = options.length > 0 ? Long.parseLong(options[0]) : 2;
+        int threads = options.length > 1 ? Integer.parseInt(options[1]) : Runtime.getRuntime().availableProcessors();
+        long measureNanos = seconds * 1_000_000_000L;
+        
+        String[] ids = new String[CANDIDATES];
+        for (int i = 0; i < CANDIDATES; i++) {
+            ids[i] = "candidate" + i;
+        }
+        String[] voters = new String[VOTERS];
+        for (int i = 0; i < VOTERS; i++) {
+            voters[i] = "SNILS_" + i;
+        }
+        
+        System.out.println("Потоков: " + threads);
+        System.out.printf("%-32s %14s %14s%n", "Сценарий", "попыток/с", "голосов");
+        
+        // Базовый вариант: счетчики и список проголосовавших под одной блокировкой
+        Map<String, Integer> locked = new HashMap<>();
+        Set<String> lockedVoters = new HashSet<>();
+        for (String id : ids) {
+            locked.put(id, 0);
+        }
+        measure("HashMap + synchronized", threads, measureNanos, BATCH, sequence -> {
+            String voter = voters[(int) (sequence % VOTERS)];
+            synchronized (locked) {
+                if (lockedVoters.add(voter)) {
+                    locked.merge(ids[(int) (sequence % CANDIDATES)], 1, Integer::sum);
+                }
+            }
+        }, () -> locked.values().stream().mapToLong(Integer::longValue).sum(), () -> lockedVoters.size());
+        locked.clear();
+        lockedVoters.clear();
+        
+        VotingSystem system = new VotingSystem();
+        VotingSystem.Voting voting = system.new Voting("Нагрузочный тест", new Date(Long.MAX_VALUE));
+        for (String id : ids) {
+            voting.addCandidate(id);
+        }
+        measure("newKeySet + LongAdder", threads, measureNanos, BATCH, sequence ->
+            voting.castVote(voters[(int) (sequence % VOTERS)], ids[(int) (sequence % CANDIDATES)]),
+            voting::getTotalVotes, () -> voting.getVoterIds().size());
+        checkCapture(system, ids, threads);
+        
+        try {
+            measureJournal(ids, voters, measureNanos);
+        } catch (IOException e) {
+            System.out.println("Журнал: ошибка " + e.getMessage());
+        }
+        
+        try {
+            measureSnapshot(ids, options.length > 2 ? Integer.parseInt(options[2]) : SNAPSHOT_USERS);
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Снимок: ошибка " + e.getMessage());
+        }
+        
+        measureResults();
+        measurePasswords();
+    }
+    
+    // Снимок голосования, взятый во время голосов, должен содержать ровно столько
+    // голосов, сколько в нем проголосовавших
+    private static void checkCapture(VotingSystem system, String[] ids, int threads) {
+        VotingSystem.Voting voting = system.new Voting("Снимок под нагрузкой", new Date(Long.MAX_VALUE));
+        for (String id : ids) {
+            voting.addCandidate(id);
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            workers[t] = new Thread(() -> {
+                for (long i = offset; running.get(); i += threads) {
+                    voting.castVote("capture_" + i, ids[(int) (i % ids.length)]);
+                }
+            });
+            workers[t].start();
+        }
+        
+        int captures = 0;
+        int mismatches = 0;
+        long end = System.nanoTime() + 500_000_000L;
+        while (System.nanoTime() < end) {
+            Map<String, Long> votes = new HashMap<>();
+            List<String> voterIds = new ArrayList<>();
+            voting.captureState(votes, voterIds);
+            long total = 0;
+            for (long count : votes.values()) {
+                total += count;
+            }
+            captures++;
+            if (total != voterIds.size()) {
+                mismatches++;
+            }
+        }
+        running.set(false);
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        System.out.printf("%-32s %14d%s%n", "снимков во время голосования", captures,
+            mismatches == 0 ? "" : " (расхождение: голоса и проголосовавшие не совпали в " + mismatches + ")");
+    }
+    
+    private static void measurePasswords() {
+        PasswordHasher hasher = new PasswordHasher();
+        String stored = hasher.hash("password").join();
+        System.out.printf("%n%-32s %12s%n", "Проверка пароля, " + PasswordHasher.ITERATIONS + " итераций", "мкс");
+        long start = System.nanoTime();
+        for (int i = 0; i < PASSWORD_CHECKS; i++) {
+            hasher.verify("user" + i, "password", stored).join();
+        }
+        System.out.printf("%-32s %12.1f%n", "PBKDF2", (System.nanoTime() - start) / 1e3 / PASSWORD_CHECKS);
+        start = System.nanoTime();
+        for (int i = 0; i < PASSWORD_CHECKS; i++) {
+            hasher.verify("user0", "password", stored).join();
+        }
+        System.out.printf("%-32s %12.1f%n", "кэш успешных проверок", (System.nanoTime() - start) / 1e3 / PASSWORD_CHECKS);
+        if (hasher.verify("user0", "wrong", stored).join() || hasher.getHits() != PASSWORD_CHECKS) {
+            System.out.println("(расхождение: неверный пароль принят или кэш не сработал)");
+        }
+    }
+    
+    // Полная сортировка против кучи на k мест, суммы по партиям и повторный просмотр
+    // без новых голосов, который обслуживается кэшем голосования
+    private static void measureResults() {
+        VotingSystem system = new VotingSystem();
+        VotingSystem.Voting voting = system.new Voting("Итоги", new Date(Long.MAX_VALUE));
+        Random random = new Random(1);
+        for (int i = 0; i < RESULT_CANDIDATES; i++) {
+            voting.addCandidate("candidate" + i);
+            voting.restoreVotes("candidate" + i, random.nextInt(1_000_000));
+        }
+        Function<String, String> partyOf = id -> "party" + Math.floorMod(id.hashCode(), RESULT_PARTIES);
+        
+        System.out.printf("%n%-32s %12s%n", "Итоги, " + RESULT_CANDIDATES + " кандидатов", "мс");
+        printResults("полная сортировка", () -> {
+            voting.invalidateResults();
+            voting.getResults(partyOf).getSorted();
+        });
+        printResults("первые " + RESULT_TOP + ", куча", () -> {
+            voting.invalidateResults();
+            voting.getResults(partyOf).getTop(RESULT_TOP);
+        });
+        printResults("суммы по " + RESULT_PARTIES + " партиям", () -> {
+            voting.invalidateResults();
+            voting.getResults(partyOf).getPartyTotals();
+        });
+        voting.getResults(partyOf).getTop(RESULT_TOP);
+        printResults("повторный просмотр, кэш", () -> voting.getResults(partyOf).getTop(RESULT_TOP));
+        
+        // Живой рейтинг: между просмотрами приходит пачка голосов за случайных
+        // кандидатов, и просмотр передвигает только их
+        Leaderboard leaderboard = voting.getLeaderboard();
+        printResults("живой рейтинг, " + RESULT_UPDATES + " голосов", () -> {
+            for (int i = 0; i < RESULT_UPDATES; i++) {
+                voting.restoreVotes("candidate" + random.nextInt(RESULT_CANDIDATES), 1 + random.nextInt(1000));
+            }
+            leaderboard.getTop(RESULT_TOP);
+        });
+        
+        VotingResults results = voting.getResults(partyOf);
+        List<Long> counts = new ArrayList<>();
+        results.getTop(RESULT_TOP).forEach(entry -> counts.add(entry.getValue()));
+        List<Long> live = new ArrayList<>();
+        leaderboard.getTop(RESULT_TOP).forEach(entry -> live.add(entry.getValue()));
+        if (!results.getTop(RESULT_TOP).equals(results.getSorted().subList(0, RESULT_TOP)) || !counts.equals(live)) {
+            System.out.println("(расхождение: первые места кучи, сортировки и рейтинга не совпадают)");
+        }
+        checkLeaderboard();
+    }
+    
+    // Рейтинг после разбора нескольких переставленных кандидатов должен совпадать
+    // с полной сортировкой: сначала известный случай, затем случайные пачки голосов
+    // в малом и большом рейтинге, в том числе с отрицательными прибавками
+    private static void checkLeaderboard() {
+        Leaderboard leaderboard = new Leaderboard();
+        Map<String, Leaderboard.Standing> standings = new HashMap<>();
+        for (int i = 0; i < 45; i++) {
+            String id = i < 5 ? "PQARB".substring(i, i + 1) : "candidate" + i;
+            standings.put(id, leaderboard.add(id));
+        }
+        long[] initial = { 10, 6, 5, 4, 1 };
+        for (int i = 0; i < initial.length; i++) {
+            leaderboard.addVotes(standings.get("PQARB".substring(i, i + 1)), initial[i]);
+        }
+        leaderboard.getTop(5);
+        leaderboard.addVotes(standings.get("B"), 6);
+        leaderboard.addVotes(standings.get("A"), 44);
+        List<Map.Entry<String, Long>> expected = List.of(Map.entry("A", 49L), Map.entry("P", 10L),
+            Map.entry("B", 7L), Map.entry("Q", 6L), Map.entry("R", 4L));
+        boolean correct = leaderboard.getTop(5).equals(expected);
+        
+        Random random = new Random(2);
+        for (int candidates : new int[] { 10, 1000 }) {
+            leaderboard = new Leaderboard();
+            List<Leaderboard.Standing> all = new ArrayList<>();
+            for (int i = 0; i < candidates; i++) {
+                all.add(leaderboard.add("candidate" + i));
+            }
+            for (int round = 0; round < 1000 && correct; round++) {
+                for (int i = 1 + random.nextInt(Math.max(candidates / 16, 3)); i > 0; i--) {
+                    leaderboard.addVotes(all.get(random.nextInt(candidates)), random.nextInt(60) - 10);
+                }
+                List<Long> live = new ArrayList<>();
+                leaderboard.getTop(candidates).forEach(entry -> live.add(entry.getValue()));
+                List<Long> sorted = new ArrayList<>();
+                all.forEach(standing -> sorted.add(standing.getVotes()));
+                sorted.sort(Comparator.reverseOrder());
+                correct = live.equals(sorted);
+            }
+        }
+        if (!correct) {
+            System.out.println("(расхождение: живой рейтинг не совпадает с полной сортировкой)");
+        }
+    }
+    
+    private static void printResults(String name, Runnable action) {
+        double best = Double.MAX_VALUE;
+        for (int r = 0; r < RESULT_REPEATS; r++) {
+            long start = System.nanoTime();
+            action.run();
+            best = Math.min(best, (System.nanoTime() - start) / 1e6);
+        }
+        System.out.printf("%-32s %12.3f%n", name, best);
+    }
+    
+    // Сравнение сериализации Java (прежний формат) с двоичным снимком и каталогом
+    // учетных записей; куча - объем, занятый загруженным состоянием
+    private static void measureSnapshot(String[] ids, int count) throws IOException, ClassNotFoundException {
+        Path directory = Files.createTempDirectory("voting-snapshot");
+        Path serialized = directory.resolve("state.ser");
+        try {
+            VotingSystem system = new VotingSystem(directory);
+            VotingSystem.Voting voting = system.new Voting("Снимок", new Date(Long.MAX_VALUE));
+            system.addVoting(voting);
+            for (String id : ids) {
+                voting.addCandidate(id);
+            }
+            for (int i = 0; i < count; i++) {
+                String snils = String.valueOf(10_000_000_000L + i);
+                VotingSystem.User user = system.new User("user" + i, "password" + i, "Иванов Иван Иванович " + i,
+                    String.format("%02d.%02d.%d", 1 + i % 28, 1 + i % 12, 1940 + i % 60), snils, "SNILS_" + snils);
+                system.register(user);
+                system.submitVote(voting, user.getUniqueId(), user.getLogin(), ids[i % ids.length]);
+            }
+            
+            System.out.printf("%n%-32s %12s %12s %12s %12s%n", "Снимок, " + count + " пользователей",
+                "запись, мс", "чтение, мс", "размер, МБ", "куча, МБ");
+            
+            // Прежний формат - сериализация Java. Объекты системы - внутренние классы
+            // и без нее не сериализуются, поэтому состояние копируется в коллекции JDK:
+            // учетные записи по логину и итоги голосования со списком проголосовавших
+            HashMap<String, ArrayList<String>> users = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                VotingSystem.User user = system.getUser("user" + i);
+                ArrayList<String> fields = new ArrayList<>(List.of(user.getPassword(), user.getFullName(),
+                    user.getBirthDate(), user.getSnils(), user.getUniqueId()));
+                fields.addAll(user.getVotedIn());
+                users.put(user.getLogin(), fields);
+            }
+            HashMap<String, Long> tallies = new HashMap<>(voting.getVotes());
+            HashSet<String> voterIds = new HashSet<>(voting.getVoterIds());
+            double write = Double.MAX_VALUE;
+            double read = Double.MAX_VALUE;
+            // Куча - наибольшая из повторов: в следующих повторах прежнее загруженное
+            // состояние еще может быть достижимо из кадра и попасть в начальный замер
+            long heap = 0;
+            long votes = 0;
+            for (int r = 0; r < SNAPSHOT_REPEATS; r++) {
+                long start = System.nanoTime();
+                try (ObjectOutputStream out = new ObjectOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(serialized), 1 << 16))) {
+                    out.writeObject(users);
+                    out.writeObject(tallies);
+                    out.writeObject(voterIds);
+                }
+                write = Math.min(write, (System.nanoTime() - start) / 1e6);
+                
+                long before = usedHeap();
+                start = System.nanoTime();
+                try (ObjectInputStream in = new ObjectInputStream(
+                        new BufferedInputStream(Files.newInputStream(serialized), 1 << 16))) {
+                    Object loadedUsers = in.readObject();
+                    Map<?, ?> loadedTallies = (Map<?, ?>) in.readObject();
+                    Object loadedVoters = in.readObject();
+                    read = Math.min(read, (System.nanoTime() - start) / 1e6);
+                    votes = loadedTallies.values().stream().mapToLong(value -> ((Number) value).longValue()).sum();
+                    heap = Math.max(heap, usedHeap() - before);
+                    java.lang.ref.Reference.reachabilityFence(loadedUsers);
+                    java.lang.ref.Reference.reachabilityFence(loadedVoters);
+                }
+            }
+            long size = Files.size(serialized);
+            Files.delete(serialized);
+            users = null;
+            voterIds = null;
+            printSnapshot("ObjectOutputStream", write, read, size, heap, votes, count);
+            
+            write = Double.MAX_VALUE;
+            read = Double.MAX_VALUE;
+            heap = 0;
+            boolean found = true;
+            for (int r = 0; r < SNAPSHOT_REPEATS; r++) {
+                long start = System.nanoTime();
+                system.checkpoint(0);
+                write = Math.min(write, (System.nanoTime() - start) / 1e6);
+                
+                long before = usedHeap();
+                start = System.nanoTime();
+                VotingSystem loaded = new VotingSystem(directory);
+                loaded.restore();
+                read = Math.min(read, (System.nanoTime() - start) / 1e6);
+                votes = loaded.findVoting(voting.getId()).getTotalVotes();
+                heap = Math.max(heap, usedHeap() - before);
+                VotingSystem.User last = loaded.getUser("user" + (count - 1));
+                found &= last != null && last.getVotedIn().contains(voting.getId());
+            }
+            size = Files.size(directory.resolve("snapshot.dat")) + Files.size(directory.resolve("users.dir"));
+            printSnapshot("двоичный снимок + каталог", write, read, size, heap, found ? votes : -1, count);
+        } finally {
+            try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+    
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    private static void printSnapshot(String name, double write, double read, long size, long heap, long votes,
+                                      int count) {
+        System.out.printf("%-32s %12.1f %12.1f %12.1f %12.1f%s%n", name, write, read, size / 1048576.0,
+            heap / 1048576.0, votes == count ? "" : " (расхождение: голосов " + votes + ")");
+    }
+    
+    private static void measureJournal(String[] ids, String[] voters, long measureNanos) throws IOException {
+        Path directory = Files.createTempDirectory("voting-journal");
+        try {
+            VotingSystem system = new VotingSystem(directory);
+            system.loadData();
+            VotingSystem.Voting voting = system.new Voting("Нагрузочный тест", new Date(Long.MAX_VALUE));
+            for (String id : ids) {
+                voting.addCandidate(id);
+            }
+            measure("журнал, " + JOURNAL_THREADS + " потоков", JOURNAL_THREADS, measureNanos, JOURNAL_BATCH,
+                sequence -> {
+                    String voter = voters[(int) (sequence % VOTERS)];
+                    system.submitVote(voting, voter, voter, ids[(int) (sequence % CANDIDATES)]);
+                }, voting::getTotalVotes, () -> voting.getVoterIds().size());
+            system.saveData();
+        } finally {
+            try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+    
+    // Каждый поток голосует до истечения времени со своими номерами попыток;
+    // итог сверяется с числом проголосовавших
+    private static void measure(String name, int threads, long measureNanos, int batch,
+                                java.util.function.LongConsumer vote,
+                                java.util.function.LongSupplier total, java.util.function.LongSupplier voters) {
+        LongAdder submitted = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long[] deadline = new long[1];
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long count = 0;
+                while (System.nanoTime() < deadline[0]) {
+                    for (int i = 0; i < batch; i++) {
+                        vote.accept((count + i) * threads + offset);
+                    }
+                    count += batch;
+                }
+                submitted.add(count);
+            });
+            workers[t].start();
+        }
+        
+        long begin = System.nanoTime();
+        deadline[0] = begin + measureNanos;
+        start.countDown();
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        double elapsed = System.nanoTime() - begin;
+        
+        long attempts = submitted.sum();
+        long counted = total.getAsLong();
+        long distinct = voters.getAsLong();
+        System.out.printf("%-32s %14.0f %14d%s%n", name, attempts / (elapsed / 1e9), counted,
+            counted == distinct ? "" : " (расхождение: проголосовавших " + distinct + ")");
     }
 }